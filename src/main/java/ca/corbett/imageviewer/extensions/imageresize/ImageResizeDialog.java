@@ -21,6 +21,7 @@ import javax.swing.JButton;
 import javax.swing.JDialog;
 import javax.swing.JPanel;
 import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 import javax.swing.border.BevelBorder;
 import java.awt.BorderLayout;
 import java.awt.Dimension;
@@ -34,6 +35,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -63,12 +65,18 @@ public class ImageResizeDialog extends JDialog {
     private ComboField<String> targetChooser;
     private NumberField targetValueField;
     private CheckBoxField forceCheckbox;
+    private CheckBoxField optimizePngCheckbox;
+    private LabelField previewLabel;
+    private BufferedImage sourceImage;
+    private BufferedImage loadedImage; // decoded by us when MainWindow didn't have it; we must flush it
+    private ResizeSizeEstimator sizeEstimator;
+    private boolean resizeInProgress;
 
     public ImageResizeDialog(File srcFile) {
         super(MainWindow.getInstance(), "Resize image");
         this.srcFile = srcFile;
-        setSize(new Dimension(500, 400));
-        setMinimumSize(new Dimension(500, 400));
+        setSize(new Dimension(500, 460));
+        setMinimumSize(new Dimension(500, 460));
         setResizable(false);
         setLocationRelativeTo(MainWindow.getInstance());
         setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
@@ -90,13 +98,19 @@ public class ImageResizeDialog extends JDialog {
      * @throws IOException If image loading or saving goes wrong.
      */
     public static long resizeImage(File srcFile, File destFile, float scaleFactor) throws IOException {
-        return resizeImage(ImageUtil.loadImage(srcFile), srcFile, destFile, scaleFactor);
+        BufferedImage img = ImageUtil.loadImage(srcFile);
+        try {
+            return resizeImage(img, srcFile, destFile, scaleFactor);
+        }
+        finally {
+            img.flush();
+        }
     }
 
     /**
      * Similar to resizeImage(File, File, float) except that here, if you have already loaded the
      * image from srcFile, you can pass it in to avoid the processing expense of loading it
-     * again here.
+     * again here. The given image is not flushed here, as the caller may still be using it.
      *
      * @param img         The image that was loaded from srcFile.
      * @param srcFile     The source file containing the image to be scaled.
@@ -107,12 +121,45 @@ public class ImageResizeDialog extends JDialog {
      */
     public static long resizeImage(BufferedImage img, File srcFile, File destFile, float scaleFactor)
             throws IOException {
+        return resizeImage(img, srcFile, destFile, scaleFactor, false);
+    }
+
+    /**
+     * Similar to resizeImage(BufferedImage, File, File, float) except that here, you can optionally
+     * request that png output be run through PngOptimizer, which tries smaller lossless encodings
+     * (palette, grayscale, no alpha channel) and stronger compression. This is slower, but can
+     * produce considerably smaller files. The flag has no effect on jpeg images.
+     *
+     * @param img         The image that was loaded from srcFile.
+     * @param srcFile     The source file containing the image to be scaled.
+     * @param destFile    The destination file to write the scaled image (overwritten if exists).
+     * @param scaleFactor Less than 1 to scale down, greater than 1 to scale up.
+     * @param optimizePng If true, png output will be written as compactly as possible.
+     * @return The difference in bytes between the size of srcFile and the size of destFile.
+     * @throws IOException If image loading or saving goes wrong.
+     */
+    public static long resizeImage(BufferedImage img, File srcFile, File destFile, float scaleFactor,
+                                   boolean optimizePng)
+            throws IOException {
         logger.log(Level.INFO, "ImageResize: resizing {0} by factor {1}",
                    new Object[]{srcFile.getAbsolutePath(), String.format(scaleFactor + "", "%0$.2f")});
-        int oldWidth = img.getWidth();
-        int oldHeight = img.getHeight();
-        int newWidth = (int)(oldWidth * scaleFactor);
-        int newHeight = (int)(oldHeight * scaleFactor);
+        int newWidth = (int)(img.getWidth() * scaleFactor);
+        int newHeight = (int)(img.getHeight() * scaleFactor);
+        BufferedImage outputImage = scaleImage(img, newWidth, newHeight);
+        if (destFile.exists()) {
+            destFile.delete();
+        }
+        saveImage(outputImage, srcFile, destFile, optimizePng);
+        outputImage.flush();
+        return srcFile.length() - destFile.length();
+
+    }
+
+    /**
+     * Returns a copy of the given image scaled to the given dimensions, using the same
+     * quality rendering hints for every resize we do.
+     */
+    static BufferedImage scaleImage(BufferedImage img, int newWidth, int newHeight) {
         int imageType = img.getColorModel().hasAlpha()
             ? BufferedImage.TYPE_INT_ARGB
             : BufferedImage.TYPE_INT_RGB;
@@ -126,25 +173,28 @@ public class ImageResizeDialog extends JDialog {
                                   RenderingHints.VALUE_RENDER_QUALITY);
         graphics.drawImage(img, 0, 0, newWidth, newHeight, null);
         graphics.dispose();
-        if (destFile.exists()) {
-            destFile.delete();
+        return outputImage;
+    }
+
+    /**
+     * Saves the given image to destFile in the same format as srcFile (png or jpeg).
+     */
+    static void saveImage(BufferedImage img, File srcFile, File destFile, boolean optimizePng) throws IOException {
+        if (isPng(srcFile) && optimizePng) {
+            PngOptimizer.savePngImage(img, destFile);
         }
-        if (isPng(srcFile)) {
-            ImageUtil.savePngImage(outputImage, destFile);
+        else if (isPng(srcFile)) {
+            ImageUtil.savePngImage(img, destFile);
         }
         else if (isJpeg(srcFile)) {
-            ImageUtil.saveImage(outputImage, destFile);
+            ImageUtil.saveImage(img, destFile);
         }
         else {
             throw new IOException("Unsupported image format; must be png or jpeg image.");
         }
-        img.flush();
-        outputImage.flush();
-        return srcFile.length() - destFile.length();
-
     }
 
-    private static boolean isPng(File f) {
+    static boolean isPng(File f) {
         return f.getName().toLowerCase().endsWith("png");
     }
 
@@ -154,10 +204,14 @@ public class ImageResizeDialog extends JDialog {
     }
 
     /**
-     * Invoked from the OK handler to do a single-image resize and dispose the dialog.
-     * If an error occurs, an error message is displayed and the dialog remains open.
+     * Invoked from the OK handler to do a single-image resize on a worker thread.
+     * The dialog is disposed once the resize completes. If an error occurs, an error
+     * message is displayed and the dialog remains open.
      */
     private void saveResize() {
+        if (resizeInProgress) {
+            return;
+        }
         if (getMessageUtil().askYesNo("Confirm", "Overwrite original image with this resize?") != MessageUtil.YES) {
             return;
         }
@@ -169,27 +223,111 @@ public class ImageResizeDialog extends JDialog {
             return;
         }
 
-        // Figure out scale factor:
+        // Just overwrite in place, don't care about file size savings on single images.
+        // We hand over the image that MainWindow or our size estimator already decoded, if we have it,
+        // to avoid loading it again. If neither has, the worker loads (and flushes) it itself:
+        resizeInProgress = true;
+        BufferedImage image = (sourceImage == null) ? loadedImage : sourceImage;
+        SingleImageResizeThread worker = new SingleImageResizeThread(image, srcFile,
+                                                                     calculateScaleFactor(newValue),
+                                                                     optimizePngCheckbox.isChecked());
+        MultiProgressDialog progressDialog = new MultiProgressDialog(this, "Resizing image...");
+        progressDialog.setInitialShowDelayMS(250); // Don't show for very quick operations.
+        worker.addProgressListener(new SingleResizeProgressListener(this, worker));
+        progressDialog.runWorker(worker, true);
+    }
+
+    /**
+     * Figures out the scale factor for a single-image resize to the given target value,
+     * based on the currently selected resize target.
+     */
+    private float calculateScaleFactor(int newValue) {
         boolean landscape = imgWidth > imgHeight;
-        float scaleFactor = switch (targetChooser.getSelectedIndex()) {
+        return switch (targetChooser.getSelectedIndex()) {
             case 0 -> (float)newValue / (float)imgWidth;
             case 1 -> (float)newValue / (float)imgHeight;
             case 2 -> landscape ? (float)newValue / (float)imgWidth : (float)newValue / (float)imgHeight;
             default -> 1f;
         };
+    }
 
-        try {
-            // Just overwrite in place, don't care about file size savings on single images:
-            resizeImage(srcFile, srcFile, scaleFactor);
+    /**
+     * Updates the preview label to show the dimensions and predicted file size that the
+     * single-image resize would produce with the current settings. The size is only shown
+     * once our ResizeSizeEstimator is ready.
+     */
+    private void updatePreview() {
+        if (previewLabel == null || imgWidth <= 0 || imgHeight <= 0) {
+            return;
         }
-        catch (IOException ioe) {
-            getMessageUtil().error("Error resizing image: " + ioe.getMessage(), ioe);
+        int newValue = targetValueField.getCurrentValue().intValue();
+        if (newValue <= 0 || newValue > MAX_DIMENSION) {
+            previewLabel.setText("n/a");
             return;
         }
+        float scaleFactor = calculateScaleFactor(newValue);
+        int newWidth = (int)(imgWidth * scaleFactor);
+        int newHeight = (int)(imgHeight * scaleFactor);
+        String text = newWidth + "x" + newHeight;
+        if (sizeEstimator != null) {
+            try {
+                long size = sizeEstimator.estimate(newWidth, newHeight, optimizePngCheckbox.isChecked());
+                text += ", approx. " + ImageResizeThread.getSizeDescription(size)
+                    + " (currently " + ImageResizeThread.getSizeDescription(srcFile.length()) + ")";
+            }
+            catch (IOException ioe) {
+                logger.log(Level.WARNING, "Unable to estimate resized file size: " + ioe.getMessage(), ioe);
+            }
+        }
+        previewLabel.setText(text);
+    }
 
-        // Reload the main window and then we're done here:
-        MainWindow.getInstance().reloadCurrentImage();
-        dispose();
+    /**
+     * Builds our ResizeSizeEstimator on a worker thread, as creating the downsampled proxy
+     * and measuring it can take a moment for large images. The preview is updated when done.
+     * If MainWindow didn't give us a decoded image, we have to load it here, and we then keep
+     * it for saveResize() so that the file isn't decoded a second time. We flush it on dispose().
+     */
+    private void startSizeEstimator() {
+        final boolean isPng = isPng(srcFile);
+        new SwingWorker<ResizeSizeEstimator, Void>() {
+            private BufferedImage loaded;
+
+            @Override
+            protected ResizeSizeEstimator doInBackground() throws Exception {
+                if (sourceImage == null) {
+                    loaded = ImageUtil.loadImage(srcFile);
+                }
+                BufferedImage image = (sourceImage == null) ? loaded : sourceImage;
+                ResizeSizeEstimator estimator = new ResizeSizeEstimator(image, srcFile);
+
+                // Measure every output variant now, so that later estimates on the EDT are just arithmetic:
+                estimator.estimate(1, 1, false);
+                if (isPng) {
+                    estimator.estimate(1, 1, true);
+                }
+                return estimator;
+            }
+
+            @Override
+            protected void done() {
+                if (loaded != null) {
+                    if (isDisplayable()) {
+                        loadedImage = loaded;
+                    }
+                    else {
+                        loaded.flush(); // the dialog was closed while we were working
+                    }
+                }
+                try {
+                    sizeEstimator = get();
+                    updatePreview();
+                }
+                catch (InterruptedException | ExecutionException e) {
+                    logger.log(Level.WARNING, "Unable to prepare resize preview: " + e.getMessage(), e);
+                }
+            }
+        }.execute();
     }
 
     /**
@@ -224,6 +362,7 @@ public class ImageResizeDialog extends JDialog {
 
         ImageResizeThread worker = new ImageResizeThread(fileList, getResizeTrigger(), triggerValue, getResizeTarget(),
                                                          targetValue, forceCheckbox.isChecked());
+        worker.setOptimizePng(optimizePngCheckbox.isChecked());
         MultiProgressDialog progressDialog = new MultiProgressDialog(this, "Resizing images...");
         progressDialog.setInitialShowDelayMS(250); // Don't show for very quick operations.
         worker.addProgressListener(new ThreadProgressListener(this, worker));
@@ -283,13 +422,24 @@ public class ImageResizeDialog extends JDialog {
         options.add("Largest dimension of...");
         targetChooser = new ComboField<>("Resize to:", options, 2, false);
         targetChooser.setMargins(new Margins(5, 5, 5, 5, 5));
+        targetChooser.addValueChangedListener(f -> updatePreview());
         formPanel.add(targetChooser);
 
         targetValueField = new NumberField("Value: ", 1, 1, MAX_DIMENSION, 100);
         targetValueField.setMargins(new Margins(5, 5, 5, 5, 5));
         targetValueField.getFieldComponent().setPreferredSize(new Dimension(100,28));
+        targetValueField.addValueChangedListener(f -> updatePreview());
         formPanel.add(targetValueField);
 
+        optimizePngCheckbox = new CheckBoxField("Optimize png file size (slower)", false);
+        optimizePngCheckbox.setMargins(new Margins(5, 5, 5, 5, 5));
+        optimizePngCheckbox.addValueChangedListener(f -> updatePreview());
+        formPanel.add(optimizePngCheckbox);
+
+        previewLabel = new LabelField("Result:", "");
+        previewLabel.setMargins(new Margins(5, 5, 5, 5, 5));
+        formPanel.add(previewLabel);
+
         return formPanel;
     }
 
@@ -303,6 +453,7 @@ public class ImageResizeDialog extends JDialog {
         triggerChooser.setVisible(!isCurrentImage);
         triggerValueField.setVisible(!isCurrentImage);
         forceCheckbox.setVisible(!isCurrentImage);
+        previewLabel.setVisible(isCurrentImage);
         if (isCurrentImage) {
             extraLabel.getFieldLabel().setText("Size:");
             extraLabel.setText(
@@ -359,13 +510,29 @@ public class ImageResizeDialog extends JDialog {
         };
     }
 
+    /**
+     * Flushes the image we loaded ourselves, if any. An image that came from MainWindow is
+     * left alone, as it's still being displayed there.
+     */
+    @Override
+    public void dispose() {
+        if (loadedImage != null && !resizeInProgress) {
+            loadedImage.flush();
+            loadedImage = null;
+        }
+        super.dispose();
+    }
+
     private void loadImageDetails() {
         ImageInstance image = MainWindow.getInstance().getSelectedImage();
         imgWidth = image.getImageWidth();
         imgHeight = image.getImageHeight();
+        sourceImage = image.getRegularImage(); // may be null, in which case we load from disk as needed
         extraLabel.getFieldLabel().setText("Size:");
         extraLabel.setText(imgWidth + "x" + imgHeight + ", " + ((imgWidth > imgHeight) ? "landscape" : "portrait"));
         targetValueField.setCurrentValue(imgWidth);
+        updatePreview();
+        startSizeEstimator();
     }
 
     /**
@@ -395,6 +562,37 @@ public class ImageResizeDialog extends JDialog {
         return messageUtil;
     }
 
+    /**
+     * Listens to our SingleImageResizeThread for completion and reports any error, or
+     * reloads the main window and closes the dialog on success.
+     * Note: these callbacks fire on the worker thread, not on the Swing EDT!
+     */
+    private static class SingleResizeProgressListener extends SimpleProgressAdapter {
+        private final ImageResizeDialog owner;
+        private final SingleImageResizeThread thread;
+
+        public SingleResizeProgressListener(ImageResizeDialog owner, SingleImageResizeThread thread) {
+            this.owner = owner;
+            this.thread = thread;
+        }
+
+        @Override
+        public void progressComplete() {
+            SwingUtilities.invokeLater(() -> {
+                owner.resizeInProgress = false;
+                if (thread.getError() != null) {
+                    owner.getMessageUtil().error("Error resizing image: " + thread.getError().getMessage(),
+                                                 thread.getError());
+                    return;
+                }
+
+                // Reload the main window and then we're done here:
+                MainWindow.getInstance().reloadCurrentImage();
+                owner.dispose();
+            });
+        }
+    }
+
     /**
      * Listens to our ImageResizeThread for completion events and reports them appropriately.
      * Note: these callbacks fire on the worker thread, not on the Swing EDT!
@@ -9,7 +9,13 @@ import org.apache.commons.io.FileUtils;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -35,9 +41,15 @@ public final class ImageResizeThread extends SimpleProgressWorker {
     private final ResizeType target;
     private final int targetValue;
     private final boolean force;
+    private ShardCoordinator shardCoordinator;
+    private boolean optimizePng;
+    private ResizeResultCache resultCache;
+    private final Map<File, List<File>> duplicateGroups = new HashMap<>();
+    private final Set<File> pendingDuplicates = new HashSet<>();
     private int resizedCount;
     private int skippedCount;
     private int problemCount;
+    private int claimedElsewhereCount;
     private boolean wasCanceled;
 
     public ImageResizeThread(List<File> fileList, ResizeType trigger, int triggerValue, ResizeType target, int targetValue, boolean force) {
@@ -47,12 +59,51 @@ public final class ImageResizeThread extends SimpleProgressWorker {
         this.target = target;
         this.targetValue = targetValue;
         this.force = force;
+        this.resultCache = new ResizeResultCache();
+    }
+
+    /**
+     * Optionally sets a ShardCoordinator which allows this thread to share its file list with
+     * other ImageResizeThread instances, possibly in other processes or on other machines.
+     * Files that are claimed or already completed by other workers will be passed over, though
+     * files leased by other workers are checked again at the end, in case those workers died.
+     *
+     * @param shardCoordinator The coordinator to use, or null to process every file in the list.
+     */
+    public void setShardCoordinator(ShardCoordinator shardCoordinator) {
+        this.shardCoordinator = shardCoordinator;
+    }
+
+    /**
+     * If set, resized png images will be run through PngOptimizer before being written.
+     * This is slower, but often turns a resize that would otherwise be skipped for negative
+     * savings into a worthwhile one. Defaults to false.
+     */
+    public void setOptimizePng(boolean optimizePng) {
+        this.optimizePng = optimizePng;
+    }
+
+    /**
+     * Sets the cache used to avoid re-processing byte-identical duplicates of images we've
+     * already resized. By default, each thread gets its own ResizeResultCache with default
+     * limits. Set null to disable result caching entirely.
+     */
+    public void setResultCache(ResizeResultCache resultCache) {
+        this.resultCache = resultCache;
     }
 
     public int getProcessedCount() {
         return fileList.size();
     }
 
+    /**
+     * Returns the number of files that were passed over because they were handled by some
+     * other worker. Always zero unless a ShardCoordinator was set.
+     */
+    public int getClaimedElsewhereCount() {
+        return claimedElsewhereCount;
+    }
+
     public int getResizedCount() {
         return resizedCount;
     }
@@ -74,62 +125,41 @@ public final class ImageResizeThread extends SimpleProgressWorker {
         resizedCount = 0;
         skippedCount = 0;
         problemCount = 0;
+        claimedElsewhereCount = 0;
         wasCanceled = false;
-        int i = 0;
         try {
             fireProgressBegins(fileList.size());
-            for (File file : fileList) {
-                if (!fireProgressUpdate(i, "Resizing " + file.getName())) {
+
+            // Only files that might have a duplicate are worth the cost of hashing in full:
+            duplicateGroups.clear();
+            pendingDuplicates.clear();
+            if (resultCache != null) {
+                for (List<File> group : ResizeResultCache.findPossibleDuplicates(fileList)) {
+                    group.forEach(file -> duplicateGroups.put(file, group));
+                    pendingDuplicates.addAll(group);
+                }
+            }
+
+            // Cooperating workers each start at a different point in the list, so that they aren't
+            // all contending for the same file at every step:
+            int offset = shardCoordinator == null ? 0 : shardCoordinator.getStartOffset(fileList.size());
+            List<File> heldElsewhere = new ArrayList<>();
+            for (int n = 0; n < fileList.size(); n++) {
+                File file = fileList.get((offset + n) % fileList.size());
+                if (!fireProgressUpdate(n, "Resizing " + file.getName())) {
                     wasCanceled = true;
                     break;
                 }
-                try {
-                    BufferedImage image = ImageUtil.loadImage(file);
-                    int oldWidth = image.getWidth();
-                    int oldHeight = image.getHeight();
-                    if (qualifiesForResize(oldWidth, oldHeight)) {
-                        float scaleFactor = calculateScaleFactor(oldWidth, oldHeight);
-                        File destFile = File.createTempFile(Version.APPLICATION_NAME, ".tmp");
-                        Stopwatch.start("imageResize");
-                        long bytesSaved = ImageResizeDialog.resizeImage(image, file, destFile, scaleFactor);
-                        Stopwatch.stop("imageResize");
-                        if (bytesSaved < 0 && !force) {
-                            skippedCount++;
-                            if (!destFile.delete()) {
-                                logger.warning("Unable to delete temp file: " + destFile.getAbsolutePath());
-                            }
-                            logger.log(Level.INFO, "Resizing of {0} skipped due to negative savings.",
-                                       new Object[]{file.getAbsolutePath()});
-                        }
-                        else {
-                            resizedCount++;
-                            if (!file.delete()) {
-                                logger.warning("Unable to delete original file: " + file.getAbsolutePath());
-                            }
-                            FileUtils.moveFile(destFile, file);
-                            logger.log(Level.INFO,
-                                       "Resizing of {0} completed with savings of {1} in {2}.",
-                                       new Object[]{file.getAbsolutePath(),
-                                           getSizeDescription(bytesSaved),
-                                           Stopwatch.reportFormatted("imageResize")});
-                        }
-                    }
-                    else {
-                        skippedCount++;
-                        logger.log(Level.INFO, "Resizing of {0} skipped because image not large enough.",
-                                   new Object[]{file.getAbsolutePath()});
-                    }
-
-                    image.flush();
-                }
-                catch (IOException ioe) {
-                    problemCount++;
-                    logger.log(Level.SEVERE,
-                               "resizeImage: Caught exception while resizing " + file.getAbsolutePath() + ": " + ioe.getMessage(),
-                               ioe);
+                if (shardCoordinator == null || tryClaim(file, heldElsewhere)) {
+                    processFile(file);
                 }
-
-                i++; // next file
+            }
+            if (!wasCanceled && !heldElsewhere.isEmpty()) {
+                waitForHeldFiles(heldElsewhere);
+            }
+            if (resultCache != null && resultCache.getHitCount() > 0) {
+                logger.log(Level.INFO, "Resize results were reused for {0} duplicate images.",
+                           new Object[]{resultCache.getHitCount()});
             }
         }
         finally {
@@ -144,6 +174,277 @@ public final class ImageResizeThread extends SimpleProgressWorker {
         }
     }
 
+    /**
+     * Attempts to claim the given file through our ShardCoordinator, and updates our counts
+     * accordingly. Files currently leased by another worker are added to the given list, so
+     * that we can check on them again later.
+     *
+     * @return True if we now hold the file and should process it.
+     */
+    private boolean tryClaim(File file, List<File> heldElsewhere) {
+        ShardCoordinator.ClaimResult result;
+        try {
+            result = shardCoordinator.claim(file);
+        }
+        catch (IOException ioe) {
+            problemCount++;
+            logger.log(Level.SEVERE, "Unable to claim " + file.getAbsolutePath() + ": " + ioe.getMessage(), ioe);
+            return false;
+        }
+        switch (result) {
+            case Claimed -> {
+                return true;
+            }
+            case Held -> heldElsewhere.add(file);
+            default -> {
+                pendingDuplicates.remove(file); // we won't be seeing this one again
+                claimedElsewhereCount++;
+                logger.log(Level.FINE, "Resizing of {0} skipped because it belongs to another worker.",
+                           new Object[]{file.getAbsolutePath()});
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Once we've been through our whole list, there may be files that were leased by other
+     * workers when we looked at them. If one of those workers died, its leases will go stale and
+     * nobody would ever finish those files, and if one released a file after a failure, it's free
+     * for another attempt. So we keep polling the held files until each one is either done or
+     * claimed by us. We give up on any that are still held after a full lease timeout, as some
+     * live worker must be renewing them. Most held files will have been finished by the time we
+     * get here, so we check once straight away, and only start sleeping between checks if some
+     * are still held.
+     */
+    private void waitForHeldFiles(List<File> heldElsewhere) {
+        long leaseTimeoutMs = shardCoordinator.getLeaseTimeoutMs();
+        // Polling a handful of lease files is cheap, and the files we're waiting on are usually
+        // just about done, so we check often rather than leave this worker idle for long:
+        long pollIntervalMs = Math.max(100, Math.min(leaseTimeoutMs / 10, 1000));
+        long deadline = System.currentTimeMillis() + leaseTimeoutMs + pollIntervalMs;
+        int progress = Math.max(0, fileList.size() - 1);
+        while (true) {
+            String message = "Waiting for " + heldElsewhere.size() + " images held by other workers";
+            if (!fireProgressUpdate(progress, message)) {
+                wasCanceled = true;
+                return;
+            }
+            List<File> stillHeld = new ArrayList<>();
+            for (File file : heldElsewhere) {
+                if (tryClaim(file, stillHeld)) {
+                    processFile(file);
+                }
+            }
+            heldElsewhere = stillHeld;
+            if (heldElsewhere.isEmpty()) {
+                return;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                claimedElsewhereCount += heldElsewhere.size();
+                logger.log(Level.INFO, "Gave up waiting on {0} images still held by other workers.",
+                           new Object[]{heldElsewhere.size()});
+                return;
+            }
+            try {
+                Thread.sleep(pollIntervalMs);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                wasCanceled = true;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Resizes (or skips) a single file that we're allowed to process, either because there's
+     * no ShardCoordinator, or because we hold its lease. Problems are counted and logged here.
+     */
+    private void processFile(File file) {
+        pendingDuplicates.remove(file);
+        try {
+            String cacheKey = duplicateGroups.containsKey(file)
+                ? resultCache.computeKey(file, getSettingsKey(file))
+                : null;
+            ResizeResultCache.Result cached = cacheKey == null ? null : resultCache.get(cacheKey);
+            if (cached != null) {
+                applyCachedResult(file, cached);
+            }
+            else {
+                resizeFile(file, cacheKey);
+            }
+        }
+        catch (IOException ioe) {
+            problemCount++;
+            if (shardCoordinator != null) {
+                shardCoordinator.release(file);
+            }
+            logger.log(Level.SEVERE,
+                       "resizeImage: Caught exception while resizing " + file.getAbsolutePath() + ": " + ioe.getMessage(),
+                       ioe);
+        }
+    }
+
+    /**
+     * Loads, resizes and saves the given file, and records the outcome in our result cache
+     * if we have one.
+     */
+    private void resizeFile(File file, String cacheKey) throws IOException {
+        BufferedImage image = ImageUtil.loadImage(file);
+        int oldWidth = image.getWidth();
+        int oldHeight = image.getHeight();
+        if (qualifiesForResize(oldWidth, oldHeight)) {
+            // No point in doing all that work if the file isn't ours anymore:
+            if (shardCoordinator != null && !shardCoordinator.renew(file)) {
+                leaseLost(file);
+                image.flush();
+                return;
+            }
+            float scaleFactor = calculateScaleFactor(oldWidth, oldHeight);
+            File destFile = File.createTempFile(Version.APPLICATION_NAME, ".tmp");
+            Stopwatch.start("imageResize");
+            long bytesSaved = ImageResizeDialog.resizeImage(image, file, destFile, scaleFactor, optimizePng);
+            Stopwatch.stop("imageResize");
+
+            // Duplicates of this file have the same size, so they'd get the same savings and the
+            // same keep-or-skip decision. We cache the output either way, if any copies are left:
+            if (cacheKey != null && hasPendingDuplicate(file)) {
+                resultCache.putResized(cacheKey, Files.readAllBytes(destFile.toPath()));
+            }
+            replaceIfWorthwhile(file, destFile, bytesSaved, Stopwatch.reportFormatted("imageResize"));
+        }
+        else {
+            if (cacheKey != null && hasPendingDuplicate(file)) {
+                resultCache.putNotResized(cacheKey);
+            }
+            if (beginCommit(file, null) && endCommit(file)) {
+                skippedCount++;
+                logger.log(Level.INFO, "Resizing of {0} skipped because image not large enough.",
+                           new Object[]{file.getAbsolutePath()});
+            }
+        }
+
+        image.flush();
+    }
+
+    /**
+     * Applies a cached result from some earlier, byte-identical source file to the given file,
+     * without having to decode or scale anything.
+     */
+    private void applyCachedResult(File file, ResizeResultCache.Result cached) throws IOException {
+        if (!cached.wasResized()) {
+            if (beginCommit(file, null) && endCommit(file)) {
+                skippedCount++;
+                logger.log(Level.INFO, "Resizing of {0} skipped because image not large enough (duplicate).",
+                           new Object[]{file.getAbsolutePath()});
+            }
+            return;
+        }
+        File destFile = File.createTempFile(Version.APPLICATION_NAME, ".tmp");
+        Files.write(destFile.toPath(), cached.output());
+        replaceIfWorthwhile(file, destFile, file.length() - cached.output().length, "no time (duplicate)");
+    }
+
+    /**
+     * Overwrites the given original file with the given resized temp file, unless the
+     * savings are negative and we weren't told to force it, in which case the temp file
+     * is discarded instead.
+     */
+    private void replaceIfWorthwhile(File file, File destFile, long bytesSaved, String timing) throws IOException {
+        if (!beginCommit(file, destFile)) {
+            return;
+        }
+        if (bytesSaved < 0 && !force) {
+            deleteTempFile(destFile);
+            if (endCommit(file)) {
+                skippedCount++;
+                logger.log(Level.INFO, "Resizing of {0} skipped due to negative savings.",
+                           new Object[]{file.getAbsolutePath()});
+            }
+        }
+        else {
+            if (!file.delete()) {
+                logger.warning("Unable to delete original file: " + file.getAbsolutePath());
+            }
+            FileUtils.moveFile(destFile, file);
+            if (endCommit(file)) {
+                resizedCount++;
+                logger.log(Level.INFO,
+                           "Resizing of {0} completed with savings of {1} in {2}.",
+                           new Object[]{file.getAbsolutePath(),
+                               getSizeDescription(bytesSaved),
+                               timing});
+            }
+        }
+    }
+
+    /**
+     * Called with our result for the given file ready but not yet in place (the resized
+     * temp file, if any, has not been moved over the original). Renewing our lease here both
+     * confirms that no other worker has taken it over, and guarantees that none can for another
+     * full lease timeout, as only stale leases are ever reclaimed. That is far longer than the
+     * move and the done marker that follow need, so together with endCommit(), those happen
+     * as a single step as far as other workers are concerned.
+     *
+     * @return False if the lease was already lost, in which case the temp file has been discarded
+     *         and the caller must leave the original alone.
+     */
+    private boolean beginCommit(File file, File destFile) {
+        if (shardCoordinator == null || shardCoordinator.renew(file)) {
+            return true;
+        }
+        if (destFile != null) {
+            deleteTempFile(destFile);
+        }
+        leaseLost(file);
+        return false;
+    }
+
+    /**
+     * Marks the given file done once our result is in place. Only if that succeeds does the
+     * caller count the outcome as ours.
+     *
+     * @return False if we lost the lease anyway, which can only happen if the commit took longer
+     *         than the whole lease timeout.
+     */
+    private boolean endCommit(File file) {
+        if (shardCoordinator == null || shardCoordinator.complete(file)) {
+            return true;
+        }
+        leaseLost(file);
+        return false;
+    }
+
+    private void leaseLost(File file) {
+        claimedElsewhereCount++;
+        logger.log(Level.WARNING, "Resizing of {0} abandoned because another worker took over its lease.",
+                   new Object[]{file.getAbsolutePath()});
+    }
+
+    private void deleteTempFile(File destFile) {
+        if (!destFile.delete()) {
+            logger.warning("Unable to delete temp file: " + destFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Reports whether any possible duplicate of the given file is still waiting to be processed
+     * by us. If not, caching this file's result would be wasted effort, as nothing would use it.
+     */
+    private boolean hasPendingDuplicate(File file) {
+        return duplicateGroups.get(file).stream().anyMatch(pendingDuplicates::contains);
+    }
+
+    /**
+     * Returns a string describing every setting that affects the output of a resize for the
+     * given file, for use in result cache keys. Note that "force" is deliberately left out, as
+     * it only affects whether the output is kept, not what it looks like.
+     */
+    private String getSettingsKey(File file) {
+        String format = ImageResizeDialog.isPng(file) ? "png" : "jpeg";
+        return trigger + ":" + triggerValue + "|" + target + ":" + targetValue + "|" + optimizePng + "|" + format;
+    }
+
     private boolean qualifiesForResize(int oldWidth, int oldHeight) {
         return switch (trigger) {
             case Width -> oldWidth > triggerValue;
@@ -161,7 +462,7 @@ public final class ImageResizeThread extends SimpleProgressWorker {
         };
     }
 
-    private String getSizeDescription(long number) {
+    static String getSizeDescription(long number) {
         long absNumber = Math.abs(number);
         String result;
         if (absNumber < 1024) {
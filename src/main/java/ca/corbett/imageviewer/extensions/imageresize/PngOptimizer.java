@@ -0,0 +1,258 @@
+package ca.corbett.imageviewer.extensions.imageresize;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Writes PNG images as compactly as possible without losing any pixel information.
+ * ImageUtil.savePngImage() always writes 24-bit RGB or 32-bit ARGB, which is often far
+ * larger than it needs to be. Here, we look at the actual pixel content and try some
+ * smaller but equivalent encodings:
+ * <ul>
+ *     <li>An indexed (palette) image, if there are 256 or fewer distinct colours.
+ *         The palette carries per-entry alpha, so this works for transparent images too.</li>
+ *     <li>An 8-bit grayscale image, if the image is fully opaque and every pixel is gray.</li>
+ *     <li>A 24-bit RGB image, if the image has an alpha channel but is fully opaque.</li>
+ * </ul>
+ * Each reduced format carries exactly the same pixels in fewer bits per pixel, so when one
+ * applies, the original format is not encoded at all. Each candidate is encoded at the
+ * strongest deflate level and the smallest result wins. Note that the JDK's PNG writer
+ * chooses its row filters itself and doesn't allow that choice to be overridden, so filter
+ * strategy is not something we can vary here.
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ */
+public final class PngOptimizer {
+
+    private static final int MAX_PALETTE_SIZE = 256;
+
+    /**
+     * The JDK PNG writer maps compression "quality" onto a deflate level, with 0.0 being
+     * level 9, the strongest. Anything weaker is pointless here: 0.5 maps to level 4,
+     * which is what ImageUtil.savePngImage() already gives us by default.
+     */
+    private static final float COMPRESSION_QUALITY = 0.0f;
+
+    private PngOptimizer() {
+    }
+
+    /**
+     * Writes the given image to the given file using the smallest lossless PNG encoding we can find.
+     *
+     * @param image    The image to save.
+     * @param destFile The destination file (overwritten if exists).
+     * @throws IOException If encoding or writing fails.
+     */
+    public static void savePngImage(BufferedImage image, File destFile) throws IOException {
+        Files.write(destFile.toPath(), encode(image));
+    }
+
+    /**
+     * Returns the smallest lossless PNG encoding we can find for the given image.
+     *
+     * @param image The image to encode.
+     * @return The encoded PNG bytes.
+     * @throws IOException If encoding fails.
+     */
+    public static byte[] encode(BufferedImage image) throws IOException {
+        byte[] best = null;
+        for (BufferedImage candidate : buildCandidates(image)) {
+            byte[] encoded = write(candidate, COMPRESSION_QUALITY);
+            if (best == null || encoded.length < best.length) {
+                best = encoded;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Analyzes the pixels of the given image and returns a list of equivalent images in
+     * whatever reduced formats the content allows. The original image is only included
+     * if no reduced format applies.
+     */
+    private static List<BufferedImage> buildCandidates(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+
+        boolean opaque = true;
+        boolean gray = true;
+        IntSet colours = new IntSet(MAX_PALETTE_SIZE + 1);
+        for (int argb : pixels) {
+            int alpha = argb >>> 24;
+            int r = (argb >> 16) & 0xFF;
+            int g = (argb >> 8) & 0xFF;
+            int b = argb & 0xFF;
+            opaque &= (alpha == 0xFF);
+            gray &= (r == g && g == b);
+            if (colours.size() <= MAX_PALETTE_SIZE) {
+                colours.add(argb);
+            }
+            if (!opaque && !gray && colours.size() > MAX_PALETTE_SIZE) {
+                break; // nothing left to discover
+            }
+        }
+
+        List<BufferedImage> candidates = new ArrayList<>();
+        if (colours.size() <= MAX_PALETTE_SIZE) {
+            candidates.add(toIndexed(pixels, width, height, colours.toArray()));
+        }
+        if (opaque && gray) {
+            candidates.add(toGray(pixels, width, height));
+        }
+        else if (opaque && image.getColorModel().hasAlpha()) {
+            candidates.add(toRgb(pixels, width, height));
+        }
+        if (candidates.isEmpty()) {
+            candidates.add(image);
+        }
+        return candidates;
+    }
+
+    private static BufferedImage toIndexed(int[] pixels, int width, int height, int[] palette) {
+        int size = palette.length;
+        int bits = size <= 2 ? 1 : size <= 4 ? 2 : size <= 16 ? 4 : 8;
+        byte[] r = new byte[size];
+        byte[] g = new byte[size];
+        byte[] b = new byte[size];
+        byte[] a = new byte[size];
+        IntSet lookup = new IntSet(size);
+        for (int i = 0; i < size; i++) {
+            a[i] = (byte)(palette[i] >>> 24);
+            r[i] = (byte)(palette[i] >> 16);
+            g[i] = (byte)(palette[i] >> 8);
+            b[i] = (byte)palette[i];
+            lookup.add(palette[i]);
+        }
+        IndexColorModel colorModel = new IndexColorModel(bits, size, r, g, b, a);
+        BufferedImage indexed = bits == 8
+            ? new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, colorModel)
+            : new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY, colorModel);
+
+        // Set raster samples directly rather than via setRGB(), which would go looking
+        // for the closest palette entry instead of the exact one:
+        WritableRaster raster = indexed.getRaster();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                raster.setSample(x, y, 0, lookup.indexOf(pixels[y * width + x]));
+            }
+        }
+        return indexed;
+    }
+
+    private static BufferedImage toGray(int[] pixels, int width, int height) {
+        BufferedImage grayImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+
+        // Again we set samples directly, as going through the colour space would alter gray levels:
+        WritableRaster raster = grayImage.getRaster();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                raster.setSample(x, y, 0, pixels[y * width + x] & 0xFF);
+            }
+        }
+        return grayImage;
+    }
+
+    private static BufferedImage toRgb(int[] pixels, int width, int height) {
+        BufferedImage rgbImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        rgbImage.setRGB(0, 0, width, height, pixels, 0, width);
+        return rgbImage;
+    }
+
+    private static byte[] write(BufferedImage image, float quality) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("png");
+        if (!writers.hasNext()) {
+            throw new IOException("No PNG image writer is available.");
+        }
+        ImageWriter writer = writers.next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality);
+            }
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), param);
+        }
+        finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * A tiny insertion-ordered set of ints, used for counting distinct colours without
+     * boxing every pixel. Only intended for the small sizes we deal with here.
+     */
+    private static final class IntSet {
+        private final int[] keys;
+        private final int[] slots; // index into values + 1, or 0 if empty
+        private final int[] values;
+        private int size;
+
+        IntSet(int capacity) {
+            int tableSize = Integer.highestOneBit(Math.max(capacity, 1) * 4);
+            keys = new int[tableSize];
+            slots = new int[tableSize];
+            values = new int[capacity];
+        }
+
+        int size() {
+            return size;
+        }
+
+        void add(int value) {
+            int mask = keys.length - 1;
+            int i = mix(value) & mask;
+            while (slots[i] != 0) {
+                if (keys[i] == value) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            if (size < values.length) {
+                keys[i] = value;
+                slots[i] = size + 1;
+                values[size] = value;
+            }
+            size++; // may exceed capacity, which just tells the caller "too many"
+        }
+
+        int indexOf(int value) {
+            int mask = keys.length - 1;
+            int i = mix(value) & mask;
+            while (slots[i] != 0) {
+                if (keys[i] == value) {
+                    return slots[i] - 1;
+                }
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        int[] toArray() {
+            int[] result = new int[Math.min(size, values.length)];
+            System.arraycopy(values, 0, result, 0, result.length);
+            return result;
+        }
+
+        private static int mix(int value) {
+            int h = value * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package ca.corbett.imageviewer.extensions.imageresize;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded, in-memory cache of resize results, keyed by a hash of the source file's content
+ * plus whatever resize settings were in effect. Photo trees often contain many byte-identical
+ * copies of the same image (exports, backups, album duplicates), and there's no point in
+ * decoding, scaling and encoding each of them separately: the output will be identical.
+ * <p>
+ * The cache is bounded by the total size of the encoded output it holds, and by a fixed number
+ * of entries. Once either bound is exceeded, the least recently used entries are evicted first.
+ * Results that are too large to fit are simply not cached. We also remember images that were
+ * too small to qualify for resize, which costs almost nothing and saves decoding the duplicates
+ * just to find that out again.
+ * </p>
+ * <p>
+ * Hashing the full content of every file would cost a complete extra read of the whole tree,
+ * and most trees have no duplicates at all. So callers should first use findPossibleDuplicates()
+ * to narrow the list down cheaply, and only compute full keys for the files it returns. Its
+ * groups also tell the caller when the last copy of a file has been processed, after which
+ * there's no point in caching its result.
+ * </p>
+ * <p>
+ * This class is not thread safe. Each ImageResizeThread uses its own instance.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ */
+public final class ResizeResultCache {
+
+    public static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024; // 32MB
+
+    public static final int MAX_ENTRIES = 10000;
+
+    private static final Logger logger = Logger.getLogger(ResizeResultCache.class.getName());
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The cached outcome of resizing one source image. If output is null, the source
+     * image did not qualify for resize at all.
+     */
+    public record Result(byte[] output) {
+        public boolean wasResized() {
+            return output != null;
+        }
+    }
+
+    private static final Result NOT_RESIZED = new Result(null);
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Result> entries;
+    private long currentBytes;
+    private int hitCount;
+    private int missCount;
+
+    public ResizeResultCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Creates a cache that will hold at most the given number of bytes of encoded output.
+     */
+    public ResizeResultCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.entries = new LinkedHashMap<>(64, 0.75f, true); // access order, for LRU eviction
+    }
+
+    /**
+     * Computes a cache key for the given source file by hashing its content together with
+     * the given settings string. Two files produce the same key only if their bytes are
+     * identical and they were processed with identical settings.
+     *
+     * @param file     The source image file.
+     * @param settings A string describing every setting that affects the resize output.
+     * @return A key suitable for get() and put().
+     * @throws IOException If the file can't be read.
+     */
+    public String computeKey(File file, String settings) throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update(settings.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte)0);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, count);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Returns groups of files from the given list that might be byte-identical to each other. Only files whose length matches another file's length are considered at all,
+     * which costs no more than a directory listing. Among those, we compare a cheap fingerprint
+     * made of the first and last blocks of each file. Files that survive both checks are very
+     * likely duplicates, but the caller must still confirm with computeKey() before reusing
+     * any result, as files can differ somewhere in the middle. Files that are in no group have
+     * no duplicate in the list, and needn't be hashed at all.
+     *
+     * @param files The list of candidate source files.
+     * @return Groups of two or more files that may be duplicates of each other.
+     */
+    public static List<List<File>> findPossibleDuplicates(List<File> files) {
+        Map<Long, List<File>> byLength = new HashMap<>();
+        for (File file : files) {
+            byLength.computeIfAbsent(file.length(), k -> new ArrayList<>()).add(file);
+        }
+
+        List<List<File>> result = new ArrayList<>();
+        for (List<File> sameLength : byLength.values()) {
+            if (sameLength.size() < 2) {
+                continue;
+            }
+            Map<String, List<File>> byFingerprint = new HashMap<>();
+            for (File file : sameLength) {
+                try {
+                    byFingerprint.computeIfAbsent(computeFingerprint(file), k -> new ArrayList<>()).add(file);
+                }
+                catch (IOException ioe) {
+                    // It'll fail again when it comes time to resize it, and be reported then:
+                    logger.log(Level.FINE, "Unable to fingerprint {0}: {1}",
+                               new Object[]{file.getAbsolutePath(), ioe.getMessage()});
+                }
+            }
+            for (List<File> sameFingerprint : byFingerprint.values()) {
+                if (sameFingerprint.size() > 1) {
+                    result.add(sameFingerprint);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Hashes the first and last blocks of the given file. Files smaller than two blocks
+     * are simply hashed in full.
+     */
+    private static String computeFingerprint(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            long length = in.length();
+            if (length <= 2L * BUFFER_SIZE) {
+                byte[] content = new byte[(int)length];
+                in.readFully(content);
+                digest.update(content);
+            }
+            else {
+                in.readFully(buffer);
+                digest.update(buffer);
+                in.seek(length - BUFFER_SIZE);
+                in.readFully(buffer);
+                digest.update(buffer);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Returns the cached result for the given key, or null if there isn't one.
+     */
+    public Result get(String key) {
+        Result result = entries.get(key);
+        if (result == null) {
+            missCount++;
+        }
+        else {
+            hitCount++;
+        }
+        return result;
+    }
+
+    /**
+     * Records that the source image with the given key was resized to the given output bytes.
+     * If the output is larger than the whole cache, it isn't stored.
+     */
+    public void putResized(String key, byte[] output) {
+        if (output.length > maxBytes) {
+            return;
+        }
+        put(key, new Result(output));
+    }
+
+    /**
+     * Records that the source image with the given key did not qualify for resize.
+     */
+    public void putNotResized(String key) {
+        put(key, NOT_RESIZED);
+    }
+
+    public int getHitCount() {
+        return hitCount;
+    }
+
+    public int getMissCount() {
+        return missCount;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    public void clear() {
+        entries.clear();
+        currentBytes = 0;
+    }
+
+    private void put(String key, Result result) {
+        Result previous = entries.put(key, result);
+        if (previous != null) {
+            currentBytes -= sizeOf(previous);
+        }
+        currentBytes += sizeOf(result);
+
+        Iterator<Map.Entry<String, Result>> iterator = entries.entrySet().iterator();
+        while ((currentBytes > maxBytes || entries.size() > MAX_ENTRIES) && iterator.hasNext()) {
+            Map.Entry<String, Result> eldest = iterator.next();
+            currentBytes -= sizeOf(eldest.getValue());
+            iterator.remove();
+        }
+    }
+
+    private static long sizeOf(Result result) {
+        return result.output() == null ? 0 : result.output().length;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // Every JRE is required to provide SHA-256, so this shouldn't happen:
+            throw new IllegalStateException(e);
+        }
+    }
+}
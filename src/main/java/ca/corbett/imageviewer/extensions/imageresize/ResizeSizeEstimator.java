@@ -0,0 +1,81 @@
+package ca.corbett.imageviewer.extensions.imageresize;
+
+import ca.corbett.imageviewer.Version;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Predicts the size on disk of a resized image without having to actually resize it.
+ * We build a small downsampled proxy of the source image once, encode that proxy in the
+ * output format to measure how many bytes per pixel this particular image costs, and then
+ * scale that figure up or down to whatever dimensions are asked for. This is only an estimate
+ * (compression ratios do vary somewhat with scale), but it's cheap enough to recompute on
+ * every keystroke once the proxy has been measured.
+ * <p>
+ * The proxy is built and measured in the constructor and in the first call to estimate() for
+ * each output variant, so those should happen off the Swing event thread. After that, estimate()
+ * is just arithmetic.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ */
+public final class ResizeSizeEstimator {
+
+    public static final int PROXY_SIZE = 384;
+
+    private final BufferedImage proxy;
+    private final File srcFile;
+    private final Map<Boolean, Double> bytesPerPixel = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an estimator for the given image.
+     *
+     * @param source  The decoded source image.
+     * @param srcFile The file it came from, which determines the output format.
+     */
+    public ResizeSizeEstimator(BufferedImage source, File srcFile) {
+        this.srcFile = srcFile;
+        int width = source.getWidth();
+        int height = source.getHeight();
+        float scale = (float)PROXY_SIZE / Math.max(width, height);
+        this.proxy = scale < 1f
+            ? ImageResizeDialog.scaleImage(source,
+                                           Math.max(1, (int)(width * scale)),
+                                           Math.max(1, (int)(height * scale)))
+            : source;
+    }
+
+    /**
+     * Returns the predicted size in bytes of this image when resized to the given dimensions.
+     *
+     * @param width       The target width.
+     * @param height      The target height.
+     * @param optimizePng Whether the output would go through PngOptimizer (ignored for jpeg).
+     * @return The estimated file size in bytes.
+     * @throws IOException If the proxy can't be encoded.
+     */
+    public long estimate(int width, int height, boolean optimizePng) throws IOException {
+        boolean key = optimizePng && ImageResizeDialog.isPng(srcFile);
+        Double cost = bytesPerPixel.get(key);
+        if (cost == null) {
+            cost = measure(key);
+            bytesPerPixel.put(key, cost);
+        }
+        return Math.round(cost * width * height);
+    }
+
+    private double measure(boolean optimizePng) throws IOException {
+        File tempFile = File.createTempFile(Version.APPLICATION_NAME, ".tmp");
+        try {
+            ImageResizeDialog.saveImage(proxy, srcFile, tempFile, optimizePng);
+            return (double)tempFile.length() / ((long)proxy.getWidth() * proxy.getHeight());
+        }
+        finally {
+            tempFile.delete();
+        }
+    }
+}
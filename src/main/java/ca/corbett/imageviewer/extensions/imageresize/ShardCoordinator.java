@@ -0,0 +1,354 @@
+package ca.corbett.imageviewer.extensions.imageresize;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Allows several ImageResizeThread instances, possibly running in different processes on
+ * different machines, to split a single bulk resize job without processing any file twice.
+ * Coordination is done entirely through the filesystem, so all that's required is that
+ * every worker can see the same lease directory (for example, on a shared NFS mount).
+ * <p>
+ * Each image is identified by a hash of its path relative to the root directory, so
+ * workers that mount the photo tree at different locations still agree on file identity.
+ * A worker claims an image by atomically creating a lease file for it, containing a token
+ * unique to that worker. When the resize is finished, the lease is replaced by a done marker
+ * so that no other worker will pick it up again. If a worker dies while holding a lease,
+ * that lease will go stale after the configured timeout and another worker is free to
+ * reclaim it. Workers renew their lease immediately before committing any result, which
+ * both checks that their token is still in it and keeps it fresh until the commit is done,
+ * so a worker whose lease was taken over will back off rather than clobber the file.
+ * </p>
+ * <p>
+ * Optionally, the job can also be statically partitioned with setShard(), in which case
+ * each worker only considers files whose path hash falls into its own shard. Leases are
+ * still honoured in that case, which keeps things safe if workers are started with
+ * overlapping shard settings.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ */
+public final class ShardCoordinator {
+
+    private static final Logger logger = Logger.getLogger(ShardCoordinator.class.getName());
+
+    /**
+     * The possible outcomes of an attempt to claim a file.
+     */
+    public enum ClaimResult {
+        Claimed, Held, Done, NotInShard
+    }
+
+    public static final long DEFAULT_LEASE_TIMEOUT_MS = 10 * 60 * 1000; // 10 minutes
+
+    private static final String LEASE_EXTENSION = ".lease";
+    private static final String DONE_EXTENSION = ".done";
+
+    private final Path rootDir;
+    private final File leaseDir;
+    private final String workerId;
+    private final long leaseTimeoutMs;
+    private final String leaseToken;
+    private int shardIndex;
+    private int shardCount;
+
+    /**
+     * Creates a coordinator with a generated worker id and the default lease timeout.
+     *
+     * @param rootDir  The root of the photo tree being resized. Must be the same tree for all workers.
+     * @param leaseDir A directory visible to all workers in which lease and done files are kept.
+     * @throws IOException If the lease directory does not exist and can't be created.
+     */
+    public ShardCoordinator(File rootDir, File leaseDir) throws IOException {
+        this(rootDir, leaseDir, generateWorkerId(), DEFAULT_LEASE_TIMEOUT_MS);
+    }
+
+    /**
+     * Creates a coordinator with the given worker id and lease timeout.
+     *
+     * @param rootDir        The root of the photo tree being resized. Must be the same tree for all workers.
+     * @param leaseDir       A directory visible to all workers in which lease and done files are kept.
+     * @param workerId       Some value that uniquely identifies this worker. Written into lease files for diagnostics.
+     * @param leaseTimeoutMs How long a lease may go without being renewed before it is considered abandoned.
+     * @throws IOException If the lease directory does not exist and can't be created.
+     */
+    public ShardCoordinator(File rootDir, File leaseDir, String workerId, long leaseTimeoutMs) throws IOException {
+        this.rootDir = rootDir.getAbsoluteFile().toPath().normalize();
+        this.leaseDir = leaseDir;
+        this.workerId = workerId;
+        this.leaseTimeoutMs = leaseTimeoutMs;
+        this.leaseToken = workerId + "-" + UUID.randomUUID();
+        this.shardIndex = 0;
+        this.shardCount = 1;
+        Files.createDirectories(leaseDir.toPath());
+    }
+
+    /**
+     * Restricts this worker to a static partition of the job. With shardCount N, each
+     * file belongs to exactly one of shards 0 through N-1 based on its path hash.
+     *
+     * @param shardIndex The zero-based shard handled by this worker.
+     * @param shardCount The total number of shards.
+     * @return This coordinator, for chaining.
+     */
+    public ShardCoordinator setShard(int shardIndex, int shardCount) {
+        if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount) {
+            throw new IllegalArgumentException("Invalid shard " + shardIndex + " of " + shardCount);
+        }
+        this.shardIndex = shardIndex;
+        this.shardCount = shardCount;
+        return this;
+    }
+
+    public String getWorkerId() {
+        return workerId;
+    }
+
+    public long getLeaseTimeoutMs() {
+        return leaseTimeoutMs;
+    }
+
+    /**
+     * Returns the position in a list of the given size at which this worker should start.
+     * Every worker walks the same list, and if they all started at the top, they'd contend
+     * for the same file at every step and each end up deferring a share of the list as held.
+     * The offset is derived from our lease token, so it differs from worker to worker, even
+     * for workers given the same worker id.
+     *
+     * @param listSize The size of the file list.
+     * @return An index from 0 to listSize - 1, or 0 if the list is empty.
+     */
+    public int getStartOffset(int listSize) {
+        if (listSize <= 0) {
+            return 0;
+        }
+        byte[] hash = hashBytes(leaseToken);
+        int value = ((hash[0] & 0xFF) << 24) | ((hash[1] & 0xFF) << 16) | ((hash[2] & 0xFF) << 8) | (hash[3] & 0xFF);
+        return Integer.remainderUnsigned(value, listSize);
+    }
+
+    /**
+     * Reports whether the given file falls into the shard handled by this worker.
+     * Always true if no static partition was configured.
+     */
+    public boolean isInShard(File file) {
+        if (shardCount == 1) {
+            return true;
+        }
+        byte[] hash = hashBytes(file);
+        int value = ((hash[0] & 0xFF) << 24) | ((hash[1] & 0xFF) << 16) | ((hash[2] & 0xFF) << 8) | (hash[3] & 0xFF);
+        return Integer.remainderUnsigned(value, shardCount) == shardIndex;
+    }
+
+    /**
+     * Attempts to claim the given file for processing by this worker.
+     *
+     * @param file The image file to be claimed.
+     * @return Claimed if this worker now holds the lease and should process the file, Done if some
+     *         worker has already finished it, NotInShard if it belongs to another static partition,
+     *         or Held if some other worker currently holds a lease on it that has not gone stale.
+     * @throws IOException If the lease directory can't be read or written. The caller should treat
+     *                     this as a problem with the file, not as the file being handled elsewhere.
+     */
+    public ClaimResult claim(File file) throws IOException {
+        if (!isInShard(file)) {
+            return ClaimResult.NotInShard;
+        }
+        String key = getKey(file);
+        File doneFile = new File(leaseDir, key + DONE_EXTENSION);
+        if (doneFile.exists()) {
+            return ClaimResult.Done;
+        }
+        Path leasePath = new File(leaseDir, key + LEASE_EXTENSION).toPath();
+        if (createLease(leasePath)) {
+            return confirmClaim(leasePath, doneFile);
+        }
+        if (!isStale(leasePath)) {
+            return ClaimResult.Held;
+        }
+
+        // The lease is stale. Several workers may notice this at the same time, so we race
+        // to rename it out of the way. The rename is atomic, and the target name is unique
+        // to this coordinator, so only one of us can win and nothing else gets overwritten:
+        Path graveyard = new File(leaseDir, key + ".stale." + sanitize(leaseToken)).toPath();
+        try {
+            Files.move(leasePath, graveyard, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (NoSuchFileException e) {
+            return ClaimResult.Held; // someone else got there first
+        }
+        boolean wasStale = isStale(graveyard); // rename preserves the timestamp
+        Files.deleteIfExists(graveyard);
+        if (!wasStale) {
+            // Another worker took over the stale lease between our staleness check and our rename,
+            // so we've just moved their fresh lease aside. We must not rename it back, as that would
+            // overwrite any lease created in the meantime. Instead we leave it gone and back off;
+            // that worker will find its lease missing at its next renew() or holdsLease() check,
+            // and will abandon the file without committing anything.
+            return ClaimResult.Held;
+        }
+        logger.log(Level.INFO, "ShardCoordinator: reclaimed stale lease for {0}", file.getAbsolutePath());
+        return createLease(leasePath) ? confirmClaim(leasePath, doneFile) : ClaimResult.Held;
+    }
+
+    /**
+     * Reports whether this coordinator still holds the lease on the given file. A lease can be
+     * lost if it was allowed to go stale and another worker took it over, so this should be
+     * checked before committing any result.
+     */
+    public boolean holdsLease(File file) {
+        Path leasePath = new File(leaseDir, getKey(file) + LEASE_EXTENSION).toPath();
+        try {
+            return leaseToken.equals(Files.readString(leasePath).trim());
+        }
+        catch (IOException ioe) {
+            return false; // missing or unreadable: either way, it isn't provably ours
+        }
+    }
+
+    /**
+     * Refreshes our lease on the given file so that it doesn't go stale during a long operation.
+     *
+     * @return False if we no longer hold the lease, in which case the file must be abandoned.
+     */
+    public boolean renew(File file) {
+        if (!holdsLease(file)) {
+            logger.warning("ShardCoordinator: lease lost for " + file.getAbsolutePath());
+            return false;
+        }
+        File lease = new File(leaseDir, getKey(file) + LEASE_EXTENSION);
+        if (!lease.setLastModified(System.currentTimeMillis())) {
+            logger.warning("ShardCoordinator: unable to renew lease for " + file.getAbsolutePath());
+        }
+        return true;
+    }
+
+    /**
+     * Marks the given file as finished so that no other worker will attempt it again,
+     * and releases our lease on it. Skipped files should also be marked complete, as
+     * the outcome would be the same for any other worker. Nothing is written if we no
+     * longer hold the lease.
+     *
+     * @return False if we no longer held the lease.
+     */
+    public boolean complete(File file) {
+        if (!holdsLease(file)) {
+            logger.warning("ShardCoordinator: lease lost before completion of " + file.getAbsolutePath());
+            return false;
+        }
+        String key = getKey(file);
+        try {
+            Files.writeString(new File(leaseDir, key + DONE_EXTENSION).toPath(), workerId + "\n");
+        }
+        catch (IOException ioe) {
+            logger.log(Level.WARNING, "ShardCoordinator: unable to write done marker for " + file.getAbsolutePath(),
+                       ioe);
+        }
+        release(file);
+        return true;
+    }
+
+    /**
+     * Releases our lease on the given file without marking it finished, so that another
+     * worker may try it. Used when processing fails or is canceled. A lease that now
+     * belongs to some other worker is left alone.
+     */
+    public void release(File file) {
+        if (!holdsLease(file)) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(new File(leaseDir, getKey(file) + LEASE_EXTENSION).toPath());
+        }
+        catch (IOException ioe) {
+            logger.log(Level.WARNING, "ShardCoordinator: unable to release lease for " + file.getAbsolutePath(), ioe);
+        }
+    }
+
+    private boolean createLease(Path leasePath) throws IOException {
+        try {
+            // createFile is atomic: it fails if the file already exists.
+            Files.createFile(leasePath);
+        }
+        catch (FileAlreadyExistsException e) {
+            return false;
+        }
+        Files.writeString(leasePath, leaseToken + "\n");
+        return true;
+    }
+
+    /**
+     * Another worker may have finished the file between our done check and our claim,
+     * in which case we back out of the lease we just took.
+     */
+    private ClaimResult confirmClaim(Path leasePath, File doneFile) throws IOException {
+        if (doneFile.exists()) {
+            Files.deleteIfExists(leasePath);
+            return ClaimResult.Done;
+        }
+        return ClaimResult.Claimed;
+    }
+
+    private boolean isStale(Path leasePath) {
+        long lastModified = leasePath.toFile().lastModified();
+        if (lastModified == 0) {
+            return false; // it disappeared in the meantime; treat as held and let the next pass retry
+        }
+        return System.currentTimeMillis() - lastModified > leaseTimeoutMs;
+    }
+
+    /**
+     * Returns a stable key for the given file, derived from its path relative to our root
+     * directory, so that it's the same for every worker regardless of mount point.
+     */
+    String getKey(File file) {
+        return HexFormat.of().formatHex(hashBytes(file));
+    }
+
+    private byte[] hashBytes(File file) {
+        Path path = file.getAbsoluteFile().toPath().normalize();
+        String relative = path.startsWith(rootDir) ? rootDir.relativize(path).toString() : path.toString();
+        return hashBytes(relative.replace(File.separatorChar, '/'));
+    }
+
+    private static byte[] hashBytes(String value) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(value.getBytes(StandardCharsets.UTF_8));
+        }
+        catch (NoSuchAlgorithmException e) {
+            // Every JRE is required to provide SHA-1, so this shouldn't happen:
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String sanitize(String value) {
+        return value.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * Generates a worker id from the local host name and process id.
+     */
+    static String generateWorkerId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        }
+        catch (IOException e) {
+            host = "unknown";
+        }
+        return host + "-" + ProcessHandle.current().pid();
+    }
+}
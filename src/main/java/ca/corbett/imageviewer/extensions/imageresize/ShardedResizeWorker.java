@@ -0,0 +1,119 @@
+package ca.corbett.imageviewer.extensions.imageresize;
+
+import ca.corbett.extras.image.ImageUtil;
+import ca.corbett.extras.io.FileSystemUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A headless entry point for running an ImageResizeThread as one of several cooperating
+ * worker processes. Start as many of these as you like, on one machine or on several
+ * machines that share the same photo tree and lease directory, and they will split the
+ * job between them via a ShardCoordinator. Workers may be killed and restarted at will;
+ * completed files are not redone, and files that were in progress when a worker died
+ * are picked up again once their lease goes stale.
+ * <p>
+ * Usage:
+ * </p>
+ * <pre>
+ * ShardedResizeWorker rootDir leaseDir targetType targetValue [options]
+ *
+ *   targetType:          Width, Height, or Either
+ *   --trigger type:value Only resize images exceeding this size (default: same as target)
+ *   --shard index/count  Only consider files in the given static partition
+ *   --lease-timeout sec  Seconds before an abandoned lease may be reclaimed
+ *   --worker-id id       Identifies this worker in lease files (default: host-pid)
+ *   --force              Resize even if the resulting file is larger
+ *   --optimize-png       Write png output as compactly as possible (slower)
+ * </pre>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ */
+public final class ShardedResizeWorker {
+
+    private static final Logger logger = Logger.getLogger(ShardedResizeWorker.class.getName());
+
+    private ShardedResizeWorker() {
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 4) {
+            System.err.println("Usage: ShardedResizeWorker rootDir leaseDir targetType targetValue"
+                                   + " [--trigger type:value] [--shard index/count] [--lease-timeout sec]"
+                                   + " [--worker-id id] [--force] [--optimize-png]");
+            System.exit(1);
+        }
+
+        try {
+            File rootDir = new File(args[0]);
+            File leaseDir = new File(args[1]);
+            ImageResizeThread.ResizeType target = ImageResizeThread.ResizeType.valueOf(args[2]);
+            int targetValue = Integer.parseInt(args[3]);
+            ImageResizeThread.ResizeType trigger = target;
+            int triggerValue = targetValue;
+            int shardIndex = 0;
+            int shardCount = 1;
+            long leaseTimeoutMs = ShardCoordinator.DEFAULT_LEASE_TIMEOUT_MS;
+            String workerId = null;
+            boolean force = false;
+            boolean optimizePng = false;
+
+            for (int i = 4; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--trigger" -> {
+                        String[] parts = args[++i].split(":");
+                        trigger = ImageResizeThread.ResizeType.valueOf(parts[0]);
+                        triggerValue = Integer.parseInt(parts[1]);
+                    }
+                    case "--shard" -> {
+                        String[] parts = args[++i].split("/");
+                        shardIndex = Integer.parseInt(parts[0]);
+                        shardCount = Integer.parseInt(parts[1]);
+                    }
+                    case "--lease-timeout" -> leaseTimeoutMs = Long.parseLong(args[++i]) * 1000;
+                    case "--worker-id" -> workerId = args[++i];
+                    case "--force" -> force = true;
+                    case "--optimize-png" -> optimizePng = true;
+                    default -> throw new IllegalArgumentException("Unrecognized option: " + args[i]);
+                }
+            }
+
+            if (workerId == null) {
+                workerId = ShardCoordinator.generateWorkerId();
+            }
+            ShardCoordinator coordinator = new ShardCoordinator(rootDir, leaseDir, workerId, leaseTimeoutMs)
+                .setShard(shardIndex, shardCount);
+
+            Instant started = Instant.now();
+            List<File> fileList = FileSystemUtil.findFiles(rootDir, true)
+                                                .stream()
+                                                .filter(ImageUtil::isImageFile)
+                                                .filter(ImageResizeExtension::fileExtensionIsSupported)
+                                                .toList();
+
+            ImageResizeThread worker = new ImageResizeThread(fileList, trigger, triggerValue, target, targetValue,
+                                                             force);
+            worker.setShardCoordinator(coordinator);
+            worker.setOptimizePng(optimizePng);
+            worker.run(); // on this thread; there's no UI to keep responsive
+
+            System.out.println("Worker " + coordinator.getWorkerId() + " evaluated " + fileList.size()
+                                   + " images: " + worker.getResizedCount() + " resized, "
+                                   + worker.getSkippedCount() + " skipped, "
+                                   + worker.getClaimedElsewhereCount() + " handled by other workers, "
+                                   + worker.getProblemCount() + " problems.");
+            System.out.println("Worker " + coordinator.getWorkerId() + " started at " + started
+                                   + ", finished at " + Instant.now());
+            System.exit(worker.getProblemCount() > 0 ? 2 : 0);
+        }
+        catch (IOException | IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            logger.log(Level.SEVERE, "ShardedResizeWorker: " + e.getMessage(), e);
+            System.exit(1);
+        }
+    }
+}
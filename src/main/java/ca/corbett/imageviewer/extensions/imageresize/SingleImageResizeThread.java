@@ -0,0 +1,82 @@
+package ca.corbett.imageviewer.extensions.imageresize;
+
+import ca.corbett.extras.image.ImageUtil;
+import ca.corbett.extras.progress.SimpleProgressWorker;
+import ca.corbett.imageviewer.Version;
+import org.apache.commons.io.FileUtils;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resizes a single image in place, off of the Swing event thread. If the caller already has
+ * the decoded image (for example, the one currently displayed in MainWindow), it can be passed
+ * in to avoid decoding it again from disk. The resized image is written to a temp file first
+ * and only moved over the original once it has been written successfully.
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ */
+public final class SingleImageResizeThread extends SimpleProgressWorker {
+
+    private static final Logger logger = Logger.getLogger(SingleImageResizeThread.class.getName());
+    private final BufferedImage image;
+    private final File file;
+    private final float scaleFactor;
+    private final boolean optimizePng;
+    private IOException error;
+
+    /**
+     * Creates a worker to resize the given file by the given scale factor.
+     *
+     * @param image       The already-decoded contents of file, or null to load it from disk.
+     * @param file        The image file to be overwritten with its resized version.
+     * @param scaleFactor Less than 1 to scale down, greater than 1 to scale up.
+     * @param optimizePng If true, png output will be written as compactly as possible.
+     */
+    public SingleImageResizeThread(BufferedImage image, File file, float scaleFactor, boolean optimizePng) {
+        this.image = image;
+        this.file = file;
+        this.scaleFactor = scaleFactor;
+        this.optimizePng = optimizePng;
+    }
+
+    /**
+     * Returns the exception that stopped the resize, or null if it completed successfully.
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    @Override
+    public void run() {
+        error = null;
+        try {
+            fireProgressBegins(1);
+            fireProgressUpdate(0, "Resizing " + file.getName());
+            BufferedImage source = (image == null) ? ImageUtil.loadImage(file) : image;
+            File destFile = File.createTempFile(Version.APPLICATION_NAME, ".tmp");
+            ImageResizeDialog.resizeImage(source, file, destFile, scaleFactor, optimizePng);
+            if (source != image) {
+                source.flush(); // we loaded it, so nobody else is using it
+            }
+            if (!file.delete()) {
+                logger.warning("Unable to delete original file: " + file.getAbsolutePath());
+            }
+            FileUtils.moveFile(destFile, file);
+        }
+        catch (IOException ioe) {
+            error = ioe;
+            logger.log(Level.SEVERE,
+                       "resizeImage: Caught exception while resizing " + file.getAbsolutePath() + ": " + ioe.getMessage(),
+                       ioe);
+        }
+        finally {
+            // There's no point in canceling a single image half way through,
+            // so we always report completion and let the listener check getError():
+            fireProgressComplete();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package ca.corbett.imageviewer.extensions.imageresize;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks how ImageResizeThread commits its results when working under a ShardCoordinator.
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ */
+class ImageResizeThreadTest {
+
+    private static final int TARGET_SIZE = 400;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void run_withLeaseHeld_shouldResizeAndMarkDone() throws Exception {
+        File image = createImage(1600, 1200);
+        ShardCoordinator coordinator = createCoordinator("worker-a");
+
+        ImageResizeThread thread = createThread(image, coordinator);
+        thread.run();
+
+        assertEquals(1, thread.getResizedCount());
+        assertEquals(0, thread.getClaimedElsewhereCount());
+        assertEquals(TARGET_SIZE, ImageIO.read(image).getWidth());
+        assertEquals(ShardCoordinator.ClaimResult.Done, createCoordinator("worker-b").claim(image));
+    }
+
+    @Test
+    void run_withLeaseTakenOverDuringResize_shouldLeaveFileToNewHolder() throws Exception {
+        // Big enough that the resize takes a while, giving the other worker plenty of time to step in:
+        File image = createImage(4000, 3000);
+        byte[] original = Files.readAllBytes(image.toPath());
+        ShardCoordinator coordinator = createCoordinator("worker-a");
+        ShardCoordinator thief = createCoordinator("worker-b");
+        File lease = tempDir.resolve("leases").resolve(coordinator.getKey(image) + ".lease").toFile();
+
+        // As soon as worker-a has taken its lease, make it look abandoned and take it over,
+        // exactly as a worker that found it stale would:
+        AtomicReference<ShardCoordinator.ClaimResult> thiefResult = new AtomicReference<>();
+        Thread stealer = new Thread(() -> {
+            try {
+                while (thiefResult.get() != ShardCoordinator.ClaimResult.Claimed
+                    && thiefResult.get() != ShardCoordinator.ClaimResult.Done) {
+                    if (coordinator.holdsLease(image)
+                        && lease.setLastModified(System.currentTimeMillis() - 60 * 60 * 1000)) {
+                        thiefResult.set(thief.claim(image));
+                    }
+                    Thread.sleep(1);
+                }
+            }
+            catch (IOException | InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        stealer.setDaemon(true);
+        stealer.start();
+
+        ImageResizeThread thread = createThread(image, coordinator);
+        thread.run();
+        stealer.join(10000);
+
+        assertEquals(ShardCoordinator.ClaimResult.Claimed, thiefResult.get(), "lease was never taken over");
+        assertEquals(0, thread.getResizedCount());
+        assertEquals(0, thread.getSkippedCount());
+        assertEquals(0, thread.getProblemCount());
+        assertEquals(1, thread.getClaimedElsewhereCount());
+        assertArrayEquals(original, Files.readAllBytes(image.toPath()), "original was overwritten");
+        assertTrue(thief.holdsLease(image));
+        assertFalse(coordinator.holdsLease(image));
+        assertFalse(tempDir.resolve("leases").resolve(coordinator.getKey(image) + ".done").toFile().exists());
+    }
+
+    /**
+     * ImageResizeThread renews its lease just before moving its result into place, and only then
+     * marks the file done. That renewal must keep any other worker from reclaiming the lease in
+     * between, even a lease that had been left to go stale before it.
+     */
+    @Test
+    void renew_withStaleLease_shouldKeepItFromBeingReclaimedUntilComplete() throws Exception {
+        File image = createImage(640, 480);
+        ShardCoordinator coordinator = createCoordinator("worker-a");
+        ShardCoordinator other = createCoordinator("worker-b");
+        File lease = tempDir.resolve("leases").resolve(coordinator.getKey(image) + ".lease").toFile();
+
+        assertEquals(ShardCoordinator.ClaimResult.Claimed, coordinator.claim(image));
+        assertTrue(lease.setLastModified(System.currentTimeMillis() - 60 * 60 * 1000));
+        assertTrue(coordinator.renew(image));
+        assertEquals(ShardCoordinator.ClaimResult.Held, other.claim(image));
+        assertTrue(coordinator.complete(image));
+        assertEquals(ShardCoordinator.ClaimResult.Done, other.claim(image));
+    }
+
+    private ImageResizeThread createThread(File image, ShardCoordinator coordinator) {
+        ImageResizeThread thread = new ImageResizeThread(List.of(image),
+                                                         ImageResizeThread.ResizeType.Either, TARGET_SIZE,
+                                                         ImageResizeThread.ResizeType.Either, TARGET_SIZE,
+                                                         true);
+        thread.setShardCoordinator(coordinator);
+        return thread;
+    }
+
+    private ShardCoordinator createCoordinator(String workerId) throws IOException {
+        return new ShardCoordinator(tempDir.resolve("photos").toFile(), tempDir.resolve("leases").toFile(),
+                                    workerId, ShardCoordinator.DEFAULT_LEASE_TIMEOUT_MS);
+    }
+
+    private File createImage(int width, int height) throws IOException {
+        Path root = Files.createDirectories(tempDir.resolve("photos"));
+        Random random = new Random(7);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y += 2) {
+            for (int x = 0; x < width; x += 2) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        File file = root.resolve("image.jpg").toFile();
+        ImageIO.write(image, "jpg", file);
+        return file;
+    }
+}
@@ -0,0 +1,121 @@
+package ca.corbett.imageviewer.extensions.imageresize;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Round-trips images through PngOptimizer and checks that every pixel comes back exactly
+ * as it went in, for each of the reduced formats it can choose.
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ */
+class PngOptimizerTest {
+
+    private static final int WIDTH = 97; // odd, so that packed rows don't end on a byte boundary
+    private static final int HEIGHT = 61;
+
+    @Test
+    void encode_withTwoColours_shouldUseOneBitPaletteLosslessly() throws IOException {
+        assertPaletteRoundTrip(2, false, 1);
+    }
+
+    @Test
+    void encode_withFourColours_shouldUseTwoBitPaletteLosslessly() throws IOException {
+        assertPaletteRoundTrip(4, false, 2);
+    }
+
+    @Test
+    void encode_withSixteenColours_shouldUseFourBitPaletteLosslessly() throws IOException {
+        assertPaletteRoundTrip(16, false, 4);
+    }
+
+    @Test
+    void encode_withTranslucentPalette_shouldKeepPerEntryAlpha() throws IOException {
+        assertPaletteRoundTrip(200, true, 8);
+    }
+
+    @Test
+    void encode_withOpaqueArgb_shouldDropAlphaChannelLosslessly() throws IOException {
+        BufferedImage input = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        Random random = new Random(1);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                input.setRGB(x, y, 0xFF000000 | random.nextInt(0x1000000)); // far more than 256 colours
+            }
+        }
+
+        BufferedImage output = roundTrip(input);
+
+        assertFalse(output.getColorModel().hasAlpha());
+        assertPixelsEqual(input, output);
+    }
+
+    @Test
+    void encode_withGrayImage_shouldUseGrayscaleLosslessly() throws IOException {
+        BufferedImage input = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int level = (x * 7 + y * 13) % 256; // every gray level, so a palette won't do
+                input.setRGB(x, y, (level << 16) | (level << 8) | level);
+            }
+        }
+
+        BufferedImage output = roundTrip(input);
+
+        // getRGB() on a gray image goes through a linear colour space conversion that shifts
+        // some levels, so we compare the raw samples instead:
+        assertEquals(BufferedImage.TYPE_BYTE_GRAY, output.getType());
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals(input.getRGB(x, y) & 0xFF, output.getRaster().getSample(x, y, 0),
+                             "sample at " + x + "," + y);
+            }
+        }
+    }
+
+    private static void assertPaletteRoundTrip(int colourCount, boolean translucent, int expectedBits)
+            throws IOException {
+        Random random = new Random(colourCount);
+        int[] colours = new int[colourCount];
+        for (int i = 0; i < colourCount; i++) {
+            int alpha = translucent ? i % 256 : 0xFF;
+            colours[i] = (alpha << 24) | (i * 0x010203 + random.nextInt(256)) & 0xFFFFFF;
+        }
+        BufferedImage input = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                input.setRGB(x, y, colours[(x + y * WIDTH) % colourCount]);
+            }
+        }
+
+        BufferedImage output = roundTrip(input);
+
+        assertTrue(output.getColorModel() instanceof IndexColorModel, "not a palette image");
+        assertEquals(expectedBits, output.getColorModel().getPixelSize());
+        assertPixelsEqual(input, output);
+    }
+
+    private static BufferedImage roundTrip(BufferedImage input) throws IOException {
+        return ImageIO.read(new ByteArrayInputStream(PngOptimizer.encode(input)));
+    }
+
+    private static void assertPixelsEqual(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals(expected.getRGB(x, y), actual.getRGB(x, y), "pixel at " + x + "," + y);
+            }
+        }
+    }
+}
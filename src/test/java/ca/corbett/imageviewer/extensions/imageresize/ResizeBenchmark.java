@@ -0,0 +1,616 @@
+package ca.corbett.imageviewer.extensions.imageresize;
+
+import ca.corbett.extras.image.ImageUtil;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * A headless performance regression check for the resize engine. This generates a deterministic
+ * corpus of synthetic jpeg and png images (several sizes, opaque and transparent, photographic
+ * and flat-colour, plus byte-identical duplicates), then runs bulk resizes over fresh copies of
+ * it in each execution mode we support, measuring throughput, peak heap and allocation.
+ * The sharded mode runs real ShardedResizeWorker processes on a larger corpus, so only its
+ * throughput can be measured from here, and that is timed from the workers' own reports.
+ * The results are compared against a committed baseline file, and the process exits with a
+ * non-zero status if any metric has regressed beyond the tolerance given in that file, or if
+ * there is no baseline file at all. Baselines are only ever written by an explicit --record.
+ * <p>
+ * Usage:
+ * </p>
+ * <pre>
+ * ResizeBenchmark [options]
+ *
+ *   --baseline file   Baseline properties file (default: benchmark/baseline.properties)
+ *   --record[=bool]   Write the measured results to the baseline file instead of comparing
+ *   --iterations n    Measured iterations per mode, after one warm-up (default: 3)
+ *   --work-dir dir    Where to write the corpus copies (default: a new temp directory)
+ * </pre>
+ * <p>
+ * Or just run "mvn -Pbenchmark verify", adding "-Dbenchmark.record=true" to record. Baselines
+ * are only meaningful on the machine that recorded them, so re-record and commit the baseline
+ * whenever the benchmark host changes.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ */
+public final class ResizeBenchmark {
+
+    private static final Logger logger = Logger.getLogger(ResizeBenchmark.class.getName());
+
+    private static final long SEED = 20240601L;
+    private static final int[][] SIZES = {{640, 480}, {1600, 1200}, {2400, 1800}};
+    private static final int TRIGGER_VALUE = 500;
+    private static final int TARGET_VALUE = 400;
+    private static final float SINGLE_SCALE_FACTOR = 0.5f;
+    private static final int SHARD_WORKERS = 2;
+    private static final int SHARD_CORPUS_BATCHES = 4;
+    private static final Pattern WORKER_TIMES = Pattern.compile("started at (\\S+), finished at (\\S+)");
+
+    private static final String FILES_PER_SEC = "filesPerSec";
+    private static final String PEAK_HEAP_MB = "peakHeapMb";
+    private static final String ALLOC_MB_PER_FILE = "allocMbPerFile";
+    private static final String ALLOC_MB_PER_SEC = "allocMbPerSec";
+    private static final long HEAP_SAMPLE_INTERVAL_MS = 2;
+
+    /**
+     * The execution modes we measure. Each is a distinct path through the resize engine.
+     */
+    public enum Mode {
+        Bulk, BulkCached, BulkOptimizePng, Sharded, Single
+    }
+
+    private record Measurement(double filesPerSec, double peakHeapMb, double allocMbPerFile, double allocMbPerSec) {
+    }
+
+    private ResizeBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        File baselineFile = new File("benchmark/baseline.properties");
+        boolean record = false;
+        int iterations = 3;
+        File workDir = null;
+        Path root = null;
+        boolean createdRoot = false;
+        int exitCode;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--baseline" -> baselineFile = new File(args[++i]);
+                    case "--record", "--record=true" -> record = true;
+                    case "--record=false" -> record = false;
+                    case "--iterations" -> iterations = Integer.parseInt(args[++i]);
+                    case "--work-dir" -> workDir = new File(args[++i]);
+                    default -> throw new IllegalArgumentException("Unrecognized option: " + args[i]);
+                }
+            }
+
+            // Passing without a baseline would make the check worthless on any fresh checkout,
+            // so we fail straight away rather than spend minutes measuring first:
+            if (!record && !baselineFile.exists()) {
+                throw new IOException("No baseline found at " + baselineFile.getAbsolutePath()
+                                          + ". Record one on the benchmark host with"
+                                          + " \"mvn -Pbenchmark verify -Dbenchmark.record=true\" and commit it.");
+            }
+
+            // The resize engine logs every file at INFO, which would swamp our output and our timings:
+            // (we only raise the level, rather than resetting the log manager, so that warnings still get through)
+            Logger.getLogger("").setLevel(Level.WARNING);
+
+            if (workDir == null) {
+                root = Files.createTempDirectory("resize-benchmark");
+                createdRoot = true;
+            }
+            else {
+                root = Files.createDirectories(workDir.toPath());
+            }
+            Map<String, byte[]> corpus = buildCorpus(1);
+            System.out.println("Generated corpus of " + corpus.size() + " images.");
+
+            // The sharded mode gets a larger corpus, so that its timing isn't dominated by whichever
+            // worker happens to be left finishing the last large image:
+            Map<String, byte[]> shardedCorpus = buildCorpus(SHARD_CORPUS_BATCHES);
+            System.out.println("Generated corpus of " + shardedCorpus.size() + " images for sharded mode.");
+
+            Map<Mode, Measurement> results = new LinkedHashMap<>();
+            for (Mode mode : Mode.values()) {
+                Map<String, byte[]> modeCorpus = mode == Mode.Sharded ? shardedCorpus : corpus;
+                runMode(mode, modeCorpus, root); // warm-up, discarded
+                List<Measurement> measurements = new ArrayList<>();
+                for (int i = 0; i < iterations; i++) {
+                    measurements.add(runMode(mode, modeCorpus, root));
+                }
+                results.put(mode, summarize(measurements));
+                Measurement m = results.get(mode);
+                System.out.printf("%-16s %8s files/sec %8s MB peak heap %8s MB allocated/file %8s MB/sec%n",
+                                  mode, format(m.filesPerSec(), "%.2f"), format(m.peakHeapMb(), "%.1f"),
+                                  format(m.allocMbPerFile(), "%.2f"), format(m.allocMbPerSec(), "%.1f"));
+            }
+
+            if (record) {
+                writeBaseline(baselineFile, results);
+                System.out.println("Baseline written to " + baselineFile.getAbsolutePath());
+                exitCode = 0;
+            }
+            else {
+                List<String> regressions = compareToBaseline(baselineFile, results);
+                regressions.forEach(System.out::println);
+                System.out.println(regressions.isEmpty() ? "No performance regressions detected." :
+                                       regressions.size() + " performance regression(s) detected.");
+                exitCode = regressions.isEmpty() ? 0 : 2;
+            }
+        }
+        catch (IOException | IllegalArgumentException | ArrayIndexOutOfBoundsException | InterruptedException e) {
+            logger.log(Level.SEVERE, "ResizeBenchmark: " + e.getMessage(), e);
+            exitCode = 1;
+        }
+        finally {
+            cleanUp(root, createdRoot);
+        }
+        System.exit(exitCode);
+    }
+
+    /**
+     * Removes whatever we wrote under the given work directory. The directory itself is only
+     * removed if we created it; a directory given to us via --work-dir may hold other things,
+     * so there we only remove the subdirectories that runMode() creates.
+     */
+    private static void cleanUp(Path root, boolean createdRoot) {
+        if (root == null) {
+            return;
+        }
+        try {
+            deleteRecursively(root.resolve("run"));
+            deleteRecursively(root.resolve("leases"));
+            if (createdRoot) {
+                Files.deleteIfExists(root);
+            }
+        }
+        catch (IOException ioe) {
+            logger.log(Level.WARNING, "ResizeBenchmark: unable to clean up " + root + ": " + ioe.getMessage(), ioe);
+        }
+    }
+
+    /**
+     * Generates the synthetic corpus, keyed by relative path. Every image is generated from a
+     * fixed seed, so the corpus is identical from run to run. The whole set is duplicated under
+     * "copies/" so that the result cache has something to find. With more than one batch, each
+     * batch is a distinct set of images in its own directory, duplicated within the batch only.
+     */
+    private static Map<String, byte[]> buildCorpus(int batches) throws IOException {
+        Map<String, byte[]> corpus = new LinkedHashMap<>();
+        Random random = new Random(SEED);
+        for (int batch = 0; batch < batches; batch++) {
+            String dir = batches == 1 ? "" : "batch" + batch + "/";
+            for (int[] size : SIZES) {
+                int w = size[0];
+                int h = size[1];
+                String prefix = dir + w + "x" + h;
+                corpus.put(prefix + "-photo.jpg", encode(generatePhoto(w, h, false, random), "jpg"));
+                corpus.put(prefix + "-photo.png", encode(generatePhoto(w, h, false, random), "png"));
+                corpus.put(prefix + "-alpha.png", encode(generatePhoto(w, h, true, random), "png"));
+                corpus.put(prefix + "-flat.png", encode(generateFlat(w, h, random), "png"));
+            }
+            for (String name : new ArrayList<>(corpus.keySet())) {
+                if (name.startsWith(dir) && !name.startsWith(dir + "copies/")) {
+                    corpus.put(dir + "copies/" + name.substring(dir.length()), corpus.get(name));
+                }
+            }
+        }
+        return corpus;
+    }
+
+    /**
+     * Generates a busy, photograph-like image: overlapping gradients and shapes with noise.
+     */
+    private static BufferedImage generatePhoto(int width, int height, boolean alpha, Random random) {
+        BufferedImage image = new BufferedImage(width, height,
+                                                alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setPaint(new GradientPaint(0, 0, randomColor(random, alpha), width, height, randomColor(random, alpha)));
+        g.fillRect(0, 0, width, height);
+        for (int i = 0; i < 60; i++) {
+            g.setColor(randomColor(random, alpha));
+            int x = random.nextInt(width);
+            int y = random.nextInt(height);
+            g.fillOval(x, y, random.nextInt(width / 3) + 1, random.nextInt(height / 3) + 1);
+        }
+        g.dispose();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int argb = image.getRGB(x, y);
+                int noise = random.nextInt(17) - 8;
+                int r = clamp(((argb >> 16) & 0xFF) + noise);
+                int gr = clamp(((argb >> 8) & 0xFF) + noise);
+                int b = clamp((argb & 0xFF) + noise);
+                image.setRGB(x, y, (argb & 0xFF000000) | (r << 16) | (gr << 8) | b);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Generates a flat-colour image with a handful of distinct colours, like a chart or icon.
+     */
+    private static BufferedImage generateFlat(int width, int height, Random random) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        Color[] palette = new Color[8];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = randomColor(random, false);
+        }
+        g.setColor(palette[0]);
+        g.fillRect(0, 0, width, height);
+        for (int i = 0; i < 40; i++) {
+            g.setColor(palette[random.nextInt(palette.length)]);
+            g.fillRect(random.nextInt(width), random.nextInt(height),
+                       random.nextInt(width / 4) + 1, random.nextInt(height / 4) + 1);
+        }
+        g.dispose();
+        return image;
+    }
+
+    private static Color randomColor(Random random, boolean alpha) {
+        return new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256),
+                         alpha ? random.nextInt(256) : 255);
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    private static byte[] encode(BufferedImage image, String format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!ImageIO.write(image, format, out)) {
+            throw new IOException("No image writer for " + format);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes a fresh copy of the corpus and runs one resize pass over it in the given mode.
+     */
+    private static Measurement runMode(Mode mode, Map<String, byte[]> corpus, Path root)
+            throws IOException, InterruptedException {
+        Path runDir = root.resolve("run");
+        Path leaseDir = root.resolve("leases");
+        deleteRecursively(runDir);
+        deleteRecursively(leaseDir);
+        List<File> files = new ArrayList<>();
+        for (Map.Entry<String, byte[]> entry : corpus.entrySet()) {
+            Path path = runDir.resolve(entry.getKey());
+            Files.createDirectories(path.getParent());
+            Files.write(path, entry.getValue());
+            files.add(path.toFile());
+        }
+
+        if (mode == Mode.Sharded) {
+            return runShardedWorkers(files.size(), runDir, leaseDir);
+        }
+
+        // A benchmark that quietly stopped doing work would look like a great improvement,
+        // so we count every problem the workers report and refuse to measure if there are any:
+        List<Runnable> tasks = new ArrayList<>();
+        AtomicInteger problemCount = new AtomicInteger();
+        AtomicLong excludedNanos = new AtomicLong();
+        AtomicLong excludedBytes = new AtomicLong();
+        com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        switch (mode) {
+            case Bulk -> tasks.add(createBulkTask(files, false, false, problemCount));
+            case BulkCached -> tasks.add(createBulkTask(files, true, false, problemCount));
+            case BulkOptimizePng -> tasks.add(createBulkTask(files, false, true, problemCount));
+            case Single -> tasks.add(() -> {
+                for (File file : files) {
+                    // The dialog is given the image that the viewer has already decoded,
+                    // so decoding is not part of this path, and we leave it out of the measurements:
+                    long startTime = System.nanoTime();
+                    long startBytes = threadBean.getCurrentThreadAllocatedBytes();
+                    BufferedImage image;
+                    try {
+                        image = ImageUtil.loadImage(file);
+                    }
+                    catch (IOException ioe) {
+                        problemCount.incrementAndGet();
+                        logger.log(Level.SEVERE, "ResizeBenchmark: unable to load " + file + ": " + ioe.getMessage(),
+                                   ioe);
+                        continue;
+                    }
+                    excludedBytes.addAndGet(threadBean.getCurrentThreadAllocatedBytes() - startBytes);
+                    excludedNanos.addAndGet(System.nanoTime() - startTime);
+
+                    SingleImageResizeThread thread = new SingleImageResizeThread(image, file, SINGLE_SCALE_FACTOR,
+                                                                                 false);
+                    thread.run();
+                    if (thread.getError() != null) {
+                        problemCount.incrementAndGet();
+                    }
+                    image.flush();
+                }
+            });
+            default -> throw new IllegalArgumentException("Unhandled mode: " + mode);
+        }
+
+        System.gc();
+        AtomicLong allocatedBytes = new AtomicLong();
+
+        // The per-pool peaks that the JVM tracks are reached at different times, so adding them up
+        // overstates the real peak by an amount that depends on GC timing. Instead, we sample the
+        // total heap in use while the run is going on:
+        MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+        AtomicLong peakHeap = new AtomicLong(memoryBean.getHeapMemoryUsage().getUsed());
+        Thread heapSampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                peakHeap.accumulateAndGet(memoryBean.getHeapMemoryUsage().getUsed(), Math::max);
+                try {
+                    Thread.sleep(HEAP_SAMPLE_INTERVAL_MS);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        heapSampler.setDaemon(true);
+        heapSampler.start();
+
+        long startTime = System.nanoTime();
+        List<Thread> threads = new ArrayList<>();
+        for (Runnable task : tasks) {
+            Thread thread = new Thread(() -> {
+                long before = threadBean.getCurrentThreadAllocatedBytes();
+                task.run();
+                allocatedBytes.addAndGet(threadBean.getCurrentThreadAllocatedBytes() - before);
+            });
+            thread.setUncaughtExceptionHandler((t, e) -> {
+                problemCount.incrementAndGet();
+                logger.log(Level.SEVERE, "ResizeBenchmark: worker failed: " + e.getMessage(), e);
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double elapsedSec = (System.nanoTime() - startTime - excludedNanos.get()) / 1e9;
+        heapSampler.interrupt();
+        heapSampler.join();
+        peakHeap.accumulateAndGet(memoryBean.getHeapMemoryUsage().getUsed(), Math::max);
+        if (problemCount.get() > 0) {
+            throw new IOException(mode + " run reported " + problemCount.get() + " problems; results are invalid.");
+        }
+
+        double allocatedMb = (allocatedBytes.get() - excludedBytes.get()) / (1024.0 * 1024.0);
+        return new Measurement(files.size() / elapsedSec,
+                               peakHeap.get() / (1024.0 * 1024.0),
+                               allocatedMb / files.size(),
+                               allocatedMb / elapsedSec);
+    }
+
+    /**
+     * Runs the sharded mode the way it runs for real: as several ShardedResizeWorker processes
+     * sharing one lease directory. The workers get the same heap and GC options that we were
+     * started with. Their heap and allocation aren't visible from this process, so only
+     * throughput is measured here; the other metrics are NaN and are not checked. JVM startup
+     * would swamp the timing, so we take it from the start and finish times that the workers
+     * report, from the first worker starting its job to the last one finishing.
+     */
+    private static Measurement runShardedWorkers(int fileCount, Path runDir, Path leaseDir)
+            throws IOException, InterruptedException {
+        Files.createDirectories(leaseDir);
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> jvmOptions = ManagementFactory.getRuntimeMXBean()
+                                                   .getInputArguments()
+                                                   .stream()
+                                                   .filter(arg -> arg.startsWith("-X"))
+                                                   .toList();
+
+        List<Process> workers = new ArrayList<>();
+        for (int i = 0; i < SHARD_WORKERS; i++) {
+            List<String> command = new ArrayList<>();
+            command.add(java);
+            command.add("-Djava.awt.headless=true");
+            command.addAll(jvmOptions);
+            command.addAll(List.of("-cp", System.getProperty("java.class.path"),
+                                   ShardedResizeWorker.class.getName(),
+                                   runDir.toString(),
+                                   leaseDir.toString(),
+                                   "Either", String.valueOf(TARGET_VALUE),
+                                   "--trigger", "Either:" + TRIGGER_VALUE,
+                                   "--force",
+                                   "--worker-id", "benchmark-" + i));
+            workers.add(new ProcessBuilder(command)
+                            .redirectErrorStream(true)
+                            .redirectOutput(leaseDir.resolve("benchmark-" + i + ".log").toFile())
+                            .start());
+        }
+
+        // As with the other modes, a worker that failed invalidates the whole run:
+        List<String> failures = new ArrayList<>();
+        Instant firstStart = null;
+        Instant lastFinish = null;
+        for (int i = 0; i < workers.size(); i++) {
+            int exitCode = workers.get(i).waitFor();
+            String output = Files.readString(leaseDir.resolve("benchmark-" + i + ".log"));
+            Matcher times = WORKER_TIMES.matcher(output);
+            if (exitCode != 0 || !times.find()) {
+                failures.add("worker benchmark-" + i + " exited with status " + exitCode + ":\n" + output);
+                continue;
+            }
+            Instant started = Instant.parse(times.group(1));
+            Instant finished = Instant.parse(times.group(2));
+            firstStart = (firstStart == null || started.isBefore(firstStart)) ? started : firstStart;
+            lastFinish = (lastFinish == null || finished.isAfter(lastFinish)) ? finished : lastFinish;
+        }
+        if (!failures.isEmpty()) {
+            throw new IOException(Mode.Sharded + " run failed; results are invalid.\n" + String.join("\n", failures));
+        }
+        double elapsedSec = Duration.between(firstStart, lastFinish).toNanos() / 1e9;
+        return new Measurement(fileCount / elapsedSec, Double.NaN, Double.NaN, Double.NaN);
+    }
+
+    private static Runnable createBulkTask(List<File> files, boolean cached, boolean optimizePng,
+                                          AtomicInteger problemCount) {
+        ImageResizeThread thread = new ImageResizeThread(files, ImageResizeThread.ResizeType.Either, TRIGGER_VALUE,
+                                                         ImageResizeThread.ResizeType.Either, TARGET_VALUE, true);
+        thread.setResultCache(cached ? new ResizeResultCache() : null);
+        thread.setOptimizePng(optimizePng);
+        return () -> {
+            thread.run();
+            problemCount.addAndGet(thread.getProblemCount());
+        };
+    }
+
+    /**
+     * Reduces several measurements of the same mode to one: the median of each metric,
+     * which is much less sensitive to a single noisy iteration than the mean.
+     */
+    private static Measurement summarize(List<Measurement> measurements) {
+        return new Measurement(median(measurements.stream().mapToDouble(Measurement::filesPerSec).toArray()),
+                               median(measurements.stream().mapToDouble(Measurement::peakHeapMb).toArray()),
+                               median(measurements.stream().mapToDouble(Measurement::allocMbPerFile).toArray()),
+                               median(measurements.stream().mapToDouble(Measurement::allocMbPerSec).toArray()));
+    }
+
+    private static double median(double[] values) {
+        Arrays.sort(values);
+        int mid = values.length / 2;
+        return values.length % 2 == 1 ? values[mid] : (values[mid - 1] + values[mid]) / 2;
+    }
+
+    /**
+     * Returns a description of each metric that is worse than its baseline by more than the
+     * configured tolerance. Throughput regresses by going down; heap and allocation by going up.
+     */
+    private static List<String> compareToBaseline(File baselineFile, Map<Mode, Measurement> results)
+            throws IOException {
+        Properties baseline = new Properties();
+        try (InputStream in = Files.newInputStream(baselineFile.toPath())) {
+            baseline.load(in);
+        }
+        List<String> regressions = new ArrayList<>();
+        for (Map.Entry<Mode, Measurement> entry : results.entrySet()) {
+            Mode mode = entry.getKey();
+            Measurement m = entry.getValue();
+            check(baseline, mode, FILES_PER_SEC, m.filesPerSec(), false, regressions);
+            check(baseline, mode, PEAK_HEAP_MB, m.peakHeapMb(), true, regressions);
+            check(baseline, mode, ALLOC_MB_PER_FILE, m.allocMbPerFile(), true, regressions);
+            // The allocation rate is recorded, but not checked: it goes up whenever throughput does,
+            // so it can't tell a regression from an improvement. Allocation per file can.
+        }
+        return regressions;
+    }
+
+    private static void check(Properties baseline, Mode mode, String metric, double actual, boolean lowerIsBetter,
+                              List<String> regressions) {
+        if (Double.isNaN(actual)) {
+            return; // not measurable in this mode
+        }
+        String expectedValue = baseline.getProperty(mode + "." + metric);
+        if (expectedValue == null) {
+            regressions.add("No baseline for " + mode + "." + metric + " (re-record with --record)");
+            return;
+        }
+        double expected = Double.parseDouble(expectedValue);
+        // A tolerance for this particular mode, if there is one, takes precedence over the general one:
+        double tolerance = Double.parseDouble(baseline.getProperty("tolerance." + mode + "." + metric,
+                                                                   baseline.getProperty("tolerance." + metric,
+                                                                                        "0.25")));
+        boolean regressed = lowerIsBetter
+            ? actual > expected * (1 + tolerance)
+            : actual < expected * (1 - tolerance);
+        if (regressed) {
+            regressions.add(String.format(Locale.ROOT, "REGRESSION: %s.%s was %.2f, baseline %.2f (tolerance %.0f%%)",
+                                          mode, metric, actual, expected, tolerance * 100));
+        }
+    }
+
+    private static void writeBaseline(File baselineFile, Map<Mode, Measurement> results) throws IOException {
+        // Keep whatever tolerances were configured before, if any:
+        Properties previous = new Properties();
+        if (baselineFile.exists()) {
+            try (InputStream in = Files.newInputStream(baselineFile.toPath())) {
+                previous.load(in);
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("# Resize performance baseline, written by ResizeBenchmark --record.\n");
+        sb.append("# Only meaningful on the machine that recorded it,"
+                      + " with the JVM options used by the benchmark profile.\n");
+        sb.append("# Tolerances are the fraction by which a metric may get worse before it is a regression.\n");
+        sb.append("tolerance.").append(FILES_PER_SEC).append('=')
+          .append(previous.getProperty("tolerance." + FILES_PER_SEC, "0.30")).append('\n');
+        sb.append("tolerance.").append(PEAK_HEAP_MB).append('=')
+          .append(previous.getProperty("tolerance." + PEAK_HEAP_MB, "0.50")).append('\n');
+        sb.append("tolerance.").append(ALLOC_MB_PER_FILE).append('=')
+          .append(previous.getProperty("tolerance." + ALLOC_MB_PER_FILE, "0.25")).append('\n');
+        sb.append("# Sharded runs vary by about 15% from run to run, as measured over ten runs on one host.\n");
+        sb.append("tolerance.").append(Mode.Sharded).append('.').append(FILES_PER_SEC).append('=')
+          .append(previous.getProperty("tolerance." + Mode.Sharded + "." + FILES_PER_SEC, "0.25")).append('\n');
+        for (Map.Entry<Mode, Measurement> entry : results.entrySet()) {
+            Measurement m = entry.getValue();
+            sb.append('\n');
+            sb.append(String.format(Locale.ROOT, "%s.%s=%.2f%n", entry.getKey(), FILES_PER_SEC, m.filesPerSec()));
+            if (!Double.isNaN(m.peakHeapMb())) {
+                sb.append(String.format(Locale.ROOT, "%s.%s=%.1f%n", entry.getKey(), PEAK_HEAP_MB, m.peakHeapMb()));
+            }
+            if (!Double.isNaN(m.allocMbPerFile())) {
+                sb.append(String.format(Locale.ROOT, "%s.%s=%.2f%n",
+                                        entry.getKey(), ALLOC_MB_PER_FILE, m.allocMbPerFile()));
+                sb.append(String.format(Locale.ROOT, "%s.%s=%.1f%n",
+                                        entry.getKey(), ALLOC_MB_PER_SEC, m.allocMbPerSec()));
+            }
+        }
+        if (baselineFile.getAbsoluteFile().getParentFile() != null) {
+            Files.createDirectories(baselineFile.getAbsoluteFile().getParentFile().toPath());
+        }
+        Files.writeString(baselineFile.toPath(), sb.toString());
+    }
+
+    private static String format(double value, String pattern) {
+        return Double.isNaN(value) ? "n/a" : String.format(Locale.ROOT, pattern, value);
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path p : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(p);
+            }
+        }
+    }
+}
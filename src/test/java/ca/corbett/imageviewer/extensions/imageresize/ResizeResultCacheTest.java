@@ -0,0 +1,156 @@
+package ca.corbett.imageviewer.extensions.imageresize;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the duplicate pre-scan and the eviction behaviour of ResizeResultCache.
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ */
+class ResizeResultCacheTest {
+
+    private static final int SMALL = 100 * 1024; // fingerprinted in full
+    private static final int LARGE = 300 * 1024; // only the first and last 64KB are fingerprinted
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void findPossibleDuplicates_withIdenticalFiles_shouldGroupThem() throws IOException {
+        byte[] content = randomBytes(LARGE, 1);
+        File a = write("a.jpg", content);
+        File b = write("b.jpg", content);
+        File other = write("other.jpg", randomBytes(LARGE, 2));
+
+        List<List<File>> groups = ResizeResultCache.findPossibleDuplicates(List.of(a, other, b));
+
+        assertEquals(1, groups.size());
+        assertEquals(Set.of(a, b), Set.copyOf(groups.get(0)));
+    }
+
+    @Test
+    void findPossibleDuplicates_withDifferentLengths_shouldNotGroupThem() throws IOException {
+        byte[] content = randomBytes(SMALL, 3);
+        File a = write("a.jpg", content);
+        File b = write("b.jpg", Arrays.copyOf(content, SMALL + 1));
+
+        assertTrue(ResizeResultCache.findPossibleDuplicates(List.of(a, b)).isEmpty());
+    }
+
+    @Test
+    void findPossibleDuplicates_withSmallFilesDifferingInTheMiddle_shouldNotGroupThem() throws IOException {
+        byte[] content = randomBytes(SMALL, 4);
+        File a = write("a.jpg", content);
+        content[SMALL / 2]++;
+        File b = write("b.jpg", content);
+
+        assertTrue(ResizeResultCache.findPossibleDuplicates(List.of(a, b)).isEmpty());
+    }
+
+    @Test
+    void findPossibleDuplicates_withLargeFilesDifferingInTheMiddle_shouldGroupThemButKeysShouldDiffer()
+            throws IOException {
+        byte[] content = randomBytes(LARGE, 5);
+        File a = write("a.jpg", content);
+        content[LARGE / 2]++;
+        File b = write("b.jpg", content);
+
+        // The fingerprint can't see the difference, which is why computeKey() must confirm:
+        assertEquals(1, ResizeResultCache.findPossibleDuplicates(List.of(a, b)).size());
+        ResizeResultCache cache = new ResizeResultCache();
+        assertNotEquals(cache.computeKey(a, "settings"), cache.computeKey(b, "settings"));
+    }
+
+    @Test
+    void findPossibleDuplicates_withLargeFilesDifferingAtEitherEnd_shouldNotGroupThem() throws IOException {
+        byte[] content = randomBytes(LARGE, 6);
+        File original = write("original.jpg", content);
+        content[0]++;
+        File firstBlockChanged = write("first.jpg", content);
+        content[0]--;
+        content[LARGE - 1]++;
+        File lastBlockChanged = write("last.jpg", content);
+
+        assertTrue(ResizeResultCache.findPossibleDuplicates(List.of(original, firstBlockChanged, lastBlockChanged))
+                                    .isEmpty());
+    }
+
+    @Test
+    void computeKey_withSameContentButDifferentSettings_shouldDiffer() throws IOException {
+        File file = write("a.jpg", randomBytes(SMALL, 7));
+        ResizeResultCache cache = new ResizeResultCache();
+
+        assertEquals(cache.computeKey(file, "one"), cache.computeKey(file, "one"));
+        assertNotEquals(cache.computeKey(file, "one"), cache.computeKey(file, "two"));
+    }
+
+    @Test
+    void putResized_beyondMaxBytes_shouldEvictLeastRecentlyUsed() {
+        ResizeResultCache cache = new ResizeResultCache(100);
+        cache.putResized("first", new byte[40]);
+        cache.putResized("second", new byte[40]);
+        assertNotNull(cache.get("first")); // now "second" is the least recently used
+
+        cache.putResized("third", new byte[40]);
+
+        assertEquals(2, cache.size());
+        assertEquals(80, cache.getCurrentBytes());
+        assertNotNull(cache.get("first"));
+        assertNull(cache.get("second"));
+        assertNotNull(cache.get("third"));
+    }
+
+    @Test
+    void putResized_largerThanWholeCache_shouldNotBeStored() {
+        ResizeResultCache cache = new ResizeResultCache(100);
+        cache.putResized("small", new byte[40]);
+
+        cache.putResized("huge", new byte[101]);
+
+        assertNull(cache.get("huge"));
+        assertNotNull(cache.get("small"));
+        assertEquals(40, cache.getCurrentBytes());
+    }
+
+    @Test
+    void putNotResized_beyondMaxEntries_shouldEvictLeastRecentlyUsed() {
+        ResizeResultCache cache = new ResizeResultCache();
+        for (int i = 0; i < ResizeResultCache.MAX_ENTRIES; i++) {
+            cache.putNotResized("key" + i);
+        }
+        assertNotNull(cache.get("key0")); // now "key1" is the least recently used
+
+        cache.putNotResized("one too many");
+
+        assertEquals(ResizeResultCache.MAX_ENTRIES, cache.size());
+        assertNotNull(cache.get("key0"));
+        assertNull(cache.get("key1"));
+        assertNotNull(cache.get("one too many"));
+    }
+
+    private File write(String name, byte[] content) throws IOException {
+        return Files.write(tempDir.resolve(name), content).toFile();
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,175 @@
+package ca.corbett.imageviewer.extensions.imageresize;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Starts several real ShardedResizeWorker processes against the same temp tree and checks that
+ * between them, every image is resized exactly once - including when one of the workers is
+ * killed part way through and its lease has to be reclaimed by the others.
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ */
+class ShardedResizeWorkerTest {
+
+    private static final int IMAGE_COUNT = 24;
+    private static final int TARGET_SIZE = 400;
+    private static final int LEASE_TIMEOUT_SEC = 2;
+    private static final long PROCESS_TIMEOUT_SEC = 180;
+    private static final Pattern SUMMARY = Pattern.compile("(\\d+) resized, (\\d+) skipped");
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void run_withThreeWorkers_shouldResizeEveryImageExactlyOnce() throws Exception {
+        Path root = createTree();
+        List<Process> workers = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            workers.add(startWorker(root, "worker" + i));
+        }
+
+        for (int i = 0; i < workers.size(); i++) {
+            assertEquals(0, awaitExit(workers.get(i)), "worker" + i + " failed: " + readOutput("worker" + i));
+        }
+        assertEachImageDoneOnce(root, List.of("worker0", "worker1", "worker2"));
+    }
+
+    @Test
+    void run_withWorkerKilledPartWay_shouldReclaimItsLeaseAndResizeEveryImageExactlyOnce() throws Exception {
+        Path root = createTree();
+        Process victim = startWorker(root, "victim");
+        List<Process> survivors = List.of(startWorker(root, "worker0"), startWorker(root, "worker1"));
+
+        // Wait until the victim has finished something and is holding a lease on something else,
+        // so that killing it really does leave an abandoned lease behind:
+        long deadline = System.currentTimeMillis() + PROCESS_TIMEOUT_SEC * 1000;
+        while (countMarkers("done", "victim") == 0 || countMarkers("lease", "victim-") == 0) {
+            if (!victim.isAlive() || System.currentTimeMillis() > deadline) {
+                fail("victim never got to hold a lease: " + readOutput("victim"));
+            }
+            Thread.sleep(20);
+        }
+        victim.destroyForcibly().waitFor();
+
+        for (int i = 0; i < survivors.size(); i++) {
+            assertEquals(0, awaitExit(survivors.get(i)), "worker" + i + " failed: " + readOutput("worker" + i));
+        }
+        assertEquals(0, countMarkers("lease", ""), "abandoned leases were left behind");
+        assertEachImageDoneOnce(root, List.of("worker0", "worker1"));
+    }
+
+    /**
+     * Every image must have exactly one done marker, every image must actually have been resized,
+     * and each surviving worker must report exactly as many completions as it has done markers.
+     * If two workers had both completed the same image, the second done marker would overwrite
+     * the first, and one worker's report would then be larger than its marker count.
+     */
+    private void assertEachImageDoneOnce(Path root, List<String> workerIds) throws IOException {
+        assertEquals(IMAGE_COUNT, countMarkers("done", ""));
+        for (String workerId : workerIds) {
+            Matcher matcher = SUMMARY.matcher(readOutput(workerId));
+            assertTrue(matcher.find(), "no summary from " + workerId);
+            int completed = Integer.parseInt(matcher.group(1)) + Integer.parseInt(matcher.group(2));
+            assertEquals(countMarkers("done", workerId), completed, workerId + " completed count mismatch");
+        }
+        try (Stream<Path> images = Files.list(root)) {
+            for (Path image : images.toList()) {
+                BufferedImage resized = ImageIO.read(image.toFile());
+                assertEquals(TARGET_SIZE, Math.max(resized.getWidth(), resized.getHeight()),
+                             image + " was not resized");
+            }
+        }
+    }
+
+    private Path createTree() throws IOException {
+        Path root = Files.createDirectories(tempDir.resolve("photos"));
+        Random random = new Random(42);
+        for (int i = 0; i < IMAGE_COUNT; i++) {
+            // Noisy content, so that each resize takes long enough for the workers to overlap:
+            BufferedImage image = new BufferedImage(1600, 1200, BufferedImage.TYPE_INT_RGB);
+            for (int y = 0; y < image.getHeight(); y += 2) {
+                for (int x = 0; x < image.getWidth(); x += 2) {
+                    image.setRGB(x, y, random.nextInt());
+                }
+            }
+            ImageIO.write(image, "jpg", root.resolve("image" + i + ".jpg").toFile());
+        }
+        return root;
+    }
+
+    private Process startWorker(Path root, String workerId) throws IOException {
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        return new ProcessBuilder(java,
+                                  "-Djava.awt.headless=true",
+                                  "-cp", System.getProperty("java.class.path"),
+                                  ShardedResizeWorker.class.getName(),
+                                  root.toString(),
+                                  tempDir.resolve("leases").toString(),
+                                  "Either", String.valueOf(TARGET_SIZE),
+                                  "--force",
+                                  "--lease-timeout", String.valueOf(LEASE_TIMEOUT_SEC),
+                                  "--worker-id", workerId)
+            .redirectErrorStream(true)
+            .redirectOutput(outputFile(workerId))
+            .start();
+    }
+
+    private int awaitExit(Process process) throws InterruptedException {
+        if (!process.waitFor(PROCESS_TIMEOUT_SEC, TimeUnit.SECONDS)) {
+            process.destroyForcibly();
+            fail("worker did not finish within " + PROCESS_TIMEOUT_SEC + " seconds");
+        }
+        return process.exitValue();
+    }
+
+    /**
+     * Counts the lease or done files in the lease directory whose content starts with the given prefix.
+     */
+    private int countMarkers(String extension, String contentPrefix) throws IOException {
+        Path leaseDir = tempDir.resolve("leases");
+        if (!Files.isDirectory(leaseDir)) {
+            return 0;
+        }
+        Map<Path, String> markers = new HashMap<>();
+        try (Stream<Path> files = Files.list(leaseDir)) {
+            for (Path file : files.filter(f -> f.toString().endsWith("." + extension)).toList()) {
+                try {
+                    markers.put(file, Files.readString(file));
+                }
+                catch (IOException ignored) {
+                    // released or reclaimed while we were looking; not counted
+                }
+            }
+        }
+        return (int)markers.values().stream().filter(content -> content.startsWith(contentPrefix)).count();
+    }
+
+    private File outputFile(String workerId) {
+        return tempDir.resolve(workerId + ".log").toFile();
+    }
+
+    private String readOutput(String workerId) throws IOException {
+        return Files.readString(outputFile(workerId).toPath());
+    }
+}